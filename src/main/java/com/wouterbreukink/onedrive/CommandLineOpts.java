@@ -1,5 +1,6 @@
 package com.wouterbreukink.onedrive;
 
+import com.wouterbreukink.onedrive.tasks.Task;
 import org.apache.commons.cli.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,6 +12,8 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
 
 public class CommandLineOpts {
     private static final Logger log = LoggerFactory.getLogger(CommandLineOpts.class);
@@ -28,17 +31,38 @@ public class CommandLineOpts {
     private boolean help = false;
     private boolean useHash = false;
     private int threads = 5;
+    private int minThreads = 0;
+    private int maxThreads = 0;
     private int tries = 3;
+    private Map<String, Integer> taskTries = new HashMap<>();
+    private Map<String, Integer> laneLimits = new HashMap<>();
     private boolean version = false;
     private boolean recursive = false;
     private int maxSizeKb = 0;
+    private int queueCapacity = 10000;
+    private boolean virtualThreads = false;
+    private int networkSlots = 0;
+    private int diskSlots = 0;
+    private int limitUp = 0;
+    private int limitDown = 0;
+    private Path limitsFile = null;
+    private Path hashIndex = null;
+    private boolean hashXattr = false;
     private Path keyFile = Paths.get("onedrive.key");
     private Path appFile = Paths.get("app.json");
     private boolean dryRun = false;
     private String logFile = null;
     private int splitAfter = 5;
+    private int largeFileSize = 0;
+    private int largeTransferBudget = 0;
+    private int parallelDownloadSize = 0;
+    private int downloadRanges = 4;
+    private boolean preallocate = false;
     private PathPatternMatcherGroup ignoredMatcherGroup = null;
     private boolean authorise = false;
+    private Path journalFile = null;
+    private boolean resume = false;
+    private Path uploadSessions = null;
 
     public static CommandLineOpts getCommandLineOpts() {
         if (!opts.isInitialised) {
@@ -63,6 +87,19 @@ public class CommandLineOpts {
         opts.recursive = line.hasOption("recursive");
         opts.dryRun = line.hasOption("dry-run");
         opts.authorise = line.hasOption("authorise");
+        opts.resume = line.hasOption("resume");
+
+        if (line.hasOption("journal")) {
+            opts.journalFile = Paths.get(line.getOptionValue("journal"));
+        }
+
+        if (opts.resume && opts.journalFile == null) {
+            throw new ParseException("resume requires a journal file");
+        }
+
+        if (line.hasOption("upload-sessions")) {
+            opts.uploadSessions = Paths.get(line.getOptionValue("upload-sessions"));
+        }
 
         if (line.hasOption("local")) {
             opts.localPath = line.getOptionValue("local");
@@ -84,14 +121,90 @@ public class CommandLineOpts {
             opts.threads = Integer.parseInt(line.getOptionValue("threads"));
         }
 
+        if (line.hasOption("min-threads")) {
+            opts.minThreads = Integer.parseInt(line.getOptionValue("min-threads"));
+        }
+
+        if (line.hasOption("max-threads")) {
+            opts.maxThreads = Integer.parseInt(line.getOptionValue("max-threads"));
+        }
+
+        if (opts.threads < 1 || opts.getMinThreads() < 1 || opts.getMaxThreads() < opts.getMinThreads()) {
+            throw new ParseException("thread counts must be positive and min-threads must not exceed max-threads");
+        }
+
         if (line.hasOption("tries")) {
             opts.tries = Integer.parseInt(line.getOptionValue("tries"));
         }
 
+        if (line.hasOption("task-tries")) {
+            opts.taskTries = parseCounts(line.getOptionValue("task-tries"), "task-tries");
+
+            for (String type : opts.taskTries.keySet()) {
+                try {
+                    Task.Type.fromName(type);
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException(String.format("unknown task type '%s' for task-tries", type));
+                }
+            }
+        }
+
+        if (line.hasOption("lane-limits")) {
+            opts.laneLimits = parseCounts(line.getOptionValue("lane-limits"), "lane-limits");
+
+            for (Map.Entry<String, Integer> entry : opts.laneLimits.entrySet()) {
+                try {
+                    TaskQueue.Lane.fromName(entry.getKey());
+                } catch (IllegalArgumentException e) {
+                    throw new ParseException(String.format("unknown lane '%s' for lane-limits", entry.getKey()));
+                }
+
+                if (entry.getValue() < 1) {
+                    throw new ParseException("lane limits must be positive");
+                }
+            }
+        }
+
         if (line.hasOption("max-size")) {
             opts.maxSizeKb = Integer.parseInt(line.getOptionValue("max-size"));
         }
 
+        if (line.hasOption("queue-capacity")) {
+            opts.queueCapacity = Integer.parseInt(line.getOptionValue("queue-capacity"));
+        }
+
+        opts.virtualThreads = line.hasOption("virtual-threads");
+
+        if (line.hasOption("network-slots")) {
+            opts.networkSlots = Integer.parseInt(line.getOptionValue("network-slots"));
+        }
+
+        if (line.hasOption("disk-slots")) {
+            opts.diskSlots = Integer.parseInt(line.getOptionValue("disk-slots"));
+        }
+
+        if (line.hasOption("limit-up")) {
+            opts.limitUp = Integer.parseInt(line.getOptionValue("limit-up"));
+        }
+
+        if (line.hasOption("limit-down")) {
+            opts.limitDown = Integer.parseInt(line.getOptionValue("limit-down"));
+        }
+
+        if (line.hasOption("limits-file")) {
+            opts.limitsFile = Paths.get(line.getOptionValue("limits-file"));
+        }
+
+        if (line.hasOption("hash-index")) {
+            opts.hashIndex = Paths.get(line.getOptionValue("hash-index"));
+        }
+
+        opts.hashXattr = line.hasOption("hash-xattr");
+
+        if (opts.hashXattr && opts.hashIndex != null) {
+            throw new ParseException("hash-index and hash-xattr cannot be combined");
+        }
+
         if (line.hasOption("keyfile")) {
             opts.keyFile = Paths.get(line.getOptionValue("keyfile"));
         }
@@ -104,6 +217,28 @@ public class CommandLineOpts {
             opts.logFile = line.getOptionValue("logfile");
         }
 
+        if (line.hasOption("large-file-size")) {
+            opts.largeFileSize = Integer.parseInt(line.getOptionValue("large-file-size"));
+        }
+
+        if (line.hasOption("large-transfer-budget")) {
+            opts.largeTransferBudget = Integer.parseInt(line.getOptionValue("large-transfer-budget"));
+        }
+
+        if (line.hasOption("parallel-download")) {
+            opts.parallelDownloadSize = Integer.parseInt(line.getOptionValue("parallel-download"));
+        }
+
+        if (line.hasOption("download-ranges")) {
+            opts.downloadRanges = Integer.parseInt(line.getOptionValue("download-ranges"));
+
+            if (opts.downloadRanges < 1) {
+                throw new ParseException("download-ranges must be at least 1");
+            }
+        }
+
+        opts.preallocate = line.hasOption("preallocate");
+
         if (line.hasOption("split-after")) {
             opts.splitAfter = Integer.parseInt(line.getOptionValue("split-after"));
 
@@ -130,6 +265,26 @@ public class CommandLineOpts {
         opts.isInitialised = true;
     }
 
+    private static Map<String, Integer> parseCounts(String value, String option) throws ParseException {
+        Map<String, Integer> counts = new HashMap<>();
+
+        for (String entry : value.split(",")) {
+            String[] pair = entry.split("=");
+
+            if (pair.length != 2) {
+                throw new ParseException(String.format("expected <name>=<count> pairs for %s", option));
+            }
+
+            try {
+                counts.put(pair[0].trim().toLowerCase(), Integer.parseInt(pair[1].trim()));
+            } catch (NumberFormatException e) {
+                throw new ParseException(String.format("invalid count '%s' for %s", pair[1], option));
+            }
+        }
+
+        return counts;
+    }
+
     private static Options buildOptions() {
         Option authorise = Option.builder("a")
                 .longOpt("authorise")
@@ -160,6 +315,20 @@ public class CommandLineOpts {
                 .desc("ignore entry file")
                 .build();
 
+        Option journal = Option.builder()
+                .longOpt("journal")
+                .hasArg()
+                .argName("file")
+                .desc("record progress in a journal file")
+                .build();
+
+        Option uploadSessions = Option.builder()
+                .longOpt("upload-sessions")
+                .hasArg()
+                .argName("folder")
+                .desc("keep multi-part upload sessions in a folder to continue them in a later run")
+                .build();
+
         Option keyFile = Option.builder("k")
                 .longOpt("keyfile")
                 .hasArg()
@@ -202,6 +371,65 @@ public class CommandLineOpts {
                 .desc("only process files smaller than <size> KB")
                 .build();
 
+        Option queueCapacity = Option.builder()
+                .longOpt("queue-capacity")
+                .hasArg()
+                .argName("count")
+                .desc("number of queued tasks before folder expansion is paused, 0 for unlimited")
+                .build();
+
+        Option virtualThreads = Option.builder()
+                .longOpt("virtual-threads")
+                .desc("run each task on a virtual thread (requires Java 21)")
+                .build();
+
+        Option networkSlots = Option.builder()
+                .longOpt("network-slots")
+                .hasArg()
+                .argName("count")
+                .desc("maximum number of concurrent network requests, 0 for unlimited")
+                .build();
+
+        Option diskSlots = Option.builder()
+                .longOpt("disk-slots")
+                .hasArg()
+                .argName("count")
+                .desc("maximum number of concurrent disk operations, 0 for unlimited")
+                .build();
+
+        Option limitUp = Option.builder()
+                .longOpt("limit-up")
+                .hasArg()
+                .argName("KB/s")
+                .desc("maximum upload bandwidth, 0 for unlimited")
+                .build();
+
+        Option limitDown = Option.builder()
+                .longOpt("limit-down")
+                .hasArg()
+                .argName("KB/s")
+                .desc("maximum download bandwidth, 0 for unlimited")
+                .build();
+
+        Option limitsFile = Option.builder()
+                .longOpt("limits-file")
+                .hasArg()
+                .argName("file")
+                .desc("read bandwidth limits from a file that may be changed while running")
+                .build();
+
+        Option hashIndex = Option.builder()
+                .longOpt("hash-index")
+                .hasArg()
+                .argName("file")
+                .desc("remember file hashes in an index file to avoid reading unchanged files again")
+                .build();
+
+        Option hashXattr = Option.builder()
+                .longOpt("hash-xattr")
+                .desc("remember file hashes in extended attributes of each file")
+                .build();
+
         Option dryRun = Option.builder("n")
                 .longOpt("dry-run")
                 .desc("only do a dry run without making changes")
@@ -212,6 +440,11 @@ public class CommandLineOpts {
                 .desc("recurse into directories")
                 .build();
 
+        Option resume = Option.builder()
+                .longOpt("resume")
+                .desc("resume the unfinished work recorded in the journal file")
+                .build();
+
         Option remotePath = Option.builder()
                 .longOpt("remote")
                 .hasArg()
@@ -219,6 +452,39 @@ public class CommandLineOpts {
                 .desc("the remote path on OneDrive")
                 .build();
 
+        Option largeFileSize = Option.builder()
+                .longOpt("large-file-size")
+                .hasArg()
+                .argName("size_in_MB")
+                .desc("schedule files bigger than <size> MB as large transfers, defaults to split-after")
+                .build();
+
+        Option largeTransferBudget = Option.builder()
+                .longOpt("large-transfer-budget")
+                .hasArg()
+                .argName("size_in_MB")
+                .desc("maximum combined size of large transfers running at once, 0 for unlimited")
+                .build();
+
+        Option parallelDownload = Option.builder()
+                .longOpt("parallel-download")
+                .hasArg()
+                .argName("size_in_MB")
+                .desc("download files bigger than <size> MB over several connections")
+                .build();
+
+        Option downloadRanges = Option.builder()
+                .longOpt("download-ranges")
+                .hasArg()
+                .argName("count")
+                .desc("number of connections used for a parallel download (default 4)")
+                .build();
+
+        Option preallocate = Option.builder()
+                .longOpt("preallocate")
+                .desc("reserve the full size of a file before downloading it")
+                .build();
+
         Option splitAfter = Option.builder("s")
                 .longOpt("split-after")
                 .hasArg()
@@ -233,6 +499,20 @@ public class CommandLineOpts {
                 .desc("number of threads to use")
                 .build();
 
+        Option minThreads = Option.builder()
+                .longOpt("min-threads")
+                .hasArg()
+                .argName("count")
+                .desc("lower bound when adapting the number of threads")
+                .build();
+
+        Option maxThreads = Option.builder()
+                .longOpt("max-threads")
+                .hasArg()
+                .argName("count")
+                .desc("upper bound when adapting the number of threads")
+                .build();
+
         Option version = Option.builder("v")
                 .longOpt("version")
                 .desc("print the version information and exit")
@@ -245,25 +525,60 @@ public class CommandLineOpts {
                 .desc("try each service request <count> times")
                 .build();
 
+        Option taskTries = Option.builder()
+                .longOpt("task-tries")
+                .hasArg()
+                .argName("type=count,...")
+                .desc("try tasks of a type (check, upload, download, delete, properties) <count> times")
+                .build();
+
+        Option laneLimits = Option.builder()
+                .longOpt("lane-limits")
+                .hasArg()
+                .argName("lane=count,...")
+                .desc("maximum number of threads per lane (metadata, small, large, maintenance)")
+                .build();
+
         return new Options()
                 .addOption(authorise)
                 .addOption(hash)
+                .addOption(hashIndex)
+                .addOption(hashXattr)
                 .addOption(direction)
                 .addOption(help)
                 .addOption(ignore)
+                .addOption(journal)
+                .addOption(uploadSessions)
                 .addOption(keyFile)
                 .addOption(appFile)
                 .addOption(logLevel)
                 .addOption(localPath)
                 .addOption(logFile)
                 .addOption(maxSize)
+                .addOption(queueCapacity)
+                .addOption(virtualThreads)
+                .addOption(networkSlots)
+                .addOption(diskSlots)
+                .addOption(limitUp)
+                .addOption(limitDown)
+                .addOption(limitsFile)
                 .addOption(dryRun)
                 .addOption(recursive)
+                .addOption(resume)
                 .addOption(remotePath)
                 .addOption(splitAfter)
+                .addOption(largeFileSize)
+                .addOption(largeTransferBudget)
+                .addOption(parallelDownload)
+                .addOption(downloadRanges)
+                .addOption(preallocate)
                 .addOption(threads)
+                .addOption(minThreads)
+                .addOption(maxThreads)
                 .addOption(version)
-                .addOption(retries);
+                .addOption(retries)
+                .addOption(taskTries)
+                .addOption(laneLimits);
     }
 
     public static void printHelp() {
@@ -291,6 +606,25 @@ public class CommandLineOpts {
         return threads;
     }
 
+    /**
+     * Lower bound on the number of active threads, equal to --threads unless adaptive threading is enabled
+     */
+    public int getMinThreads() {
+        return minThreads > 0 ? minThreads : Math.min(threads, maxThreads > 0 ? maxThreads : threads);
+    }
+
+    /**
+     * Upper bound on the number of active threads, equal to --threads unless adaptive threading is enabled
+     */
+    public int getMaxThreads() {
+        return maxThreads > 0 ? maxThreads : Math.max(threads, minThreads);
+    }
+
+    public int getLaneLimit(TaskQueue.Lane lane, int defaultLimit) {
+        Integer limit = laneLimits.get(lane.getName());
+        return limit != null ? limit : defaultLimit;
+    }
+
     public boolean useHash() {
         return useHash;
     }
@@ -299,6 +633,11 @@ public class CommandLineOpts {
         return tries;
     }
 
+    public int getTries(String taskType) {
+        Integer typeTries = taskTries.get(taskType);
+        return typeTries != null ? typeTries : tries;
+    }
+
     public boolean version() {
         return version;
     }
@@ -311,6 +650,42 @@ public class CommandLineOpts {
         return maxSizeKb;
     }
 
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public int getNetworkSlots() {
+        return networkSlots;
+    }
+
+    public int getDiskSlots() {
+        return diskSlots;
+    }
+
+    public int getLimitUp() {
+        return limitUp;
+    }
+
+    public int getLimitDown() {
+        return limitDown;
+    }
+
+    public Path getLimitsFile() {
+        return limitsFile;
+    }
+
+    public Path getHashIndex() {
+        return hashIndex;
+    }
+
+    public boolean isHashXattr() {
+        return hashXattr;
+    }
+
     public Path getKeyFile() {
         return keyFile;
     }
@@ -331,6 +706,32 @@ public class CommandLineOpts {
         return splitAfter;
     }
 
+    /**
+     * Size in MB above which transfers are scheduled in the large transfer lane
+     */
+    public int getLargeFileSize() {
+        return largeFileSize > 0 ? largeFileSize : splitAfter;
+    }
+
+    public int getLargeTransferBudget() {
+        return largeTransferBudget;
+    }
+
+    /**
+     * Size in MB above which files are downloaded over several connections, 0 if disabled
+     */
+    public int getParallelDownloadSize() {
+        return parallelDownloadSize;
+    }
+
+    public int getDownloadRanges() {
+        return downloadRanges;
+    }
+
+    public boolean isPreallocate() {
+        return preallocate;
+    }
+
     public PathPatternMatcherGroup getIgnoredMatcherGroup() {
         return ignoredMatcherGroup;
     }
@@ -339,6 +740,18 @@ public class CommandLineOpts {
         return authorise;
     }
 
+    public Path getJournalFile() {
+        return journalFile;
+    }
+
+    public boolean isResume() {
+        return resume;
+    }
+
+    public Path getUploadSessions() {
+        return uploadSessions;
+    }
+
     public enum Direction {
         UP,
         DOWN
@@ -0,0 +1,182 @@
+package com.wouterbreukink.onedrive;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import utils.string.FormatUtils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of workers allowed to run tasks at the same time.
+ * <p>
+ * When the lower and upper bound differ the limit is tuned with an additive-increase/multiplicative-decrease
+ * policy: every evaluation window without throttling, and without a drop in throughput, adds one worker.
+ * Any throttling response halves the number of workers.
+ * <p>
+ * Claiming and releasing a worker slot and recording a completed task do not lock, so they can be called for every
+ * task. Only the evaluation at the end of a window and changes to the limit are synchronized. The controller does
+ * not block, workers without a slot wait for work in the {@link TaskQueue}, which is told when the limit is raised.
+ */
+public class ConcurrencyController {
+    private static final Logger log = LoggerFactory.getLogger(ConcurrencyController.class);
+
+    // Length of a measurement window
+    private static final long WINDOW = 10000;
+    // Throughput may drop by this fraction without being treated as a regression
+    private static final double THROUGHPUT_TOLERANCE = 0.9;
+    // Average latency may grow by this factor without being treated as congestion
+    private static final double LATENCY_TOLERANCE = 1.5;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private volatile int limit;
+    private final AtomicInteger active = new AtomicInteger();
+
+    private volatile long windowStart = System.currentTimeMillis();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder totalLatency = new LongAdder();
+    private final AtomicInteger throttled = new AtomicInteger();
+    private double lastThroughput;
+    private double lastLatency;
+    private volatile Runnable limitRaisedListener;
+
+    public ConcurrencyController(int limit) {
+        this(limit, limit, limit);
+    }
+
+    public ConcurrencyController(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid concurrency bounds");
+        }
+
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Sets the callback run after the limit was raised, to wake workers waiting for a slot.
+     */
+    public void setLimitRaisedListener(Runnable limitRaisedListener) {
+        this.limitRaisedListener = limitRaisedListener;
+    }
+
+    public boolean isAdaptive() {
+        return minLimit != maxLimit;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * @return Whether a worker slot is free
+     */
+    public boolean hasCapacity() {
+        return active.get() < limit;
+    }
+
+    /**
+     * Claim a worker slot, to be given back with {@link #release()}.
+     *
+     * @return Whether a slot was claimed, false if all slots are in use
+     */
+    public boolean tryAcquire() {
+        while (true) {
+            int current = active.get();
+            if (current >= limit) {
+                return false;
+            }
+
+            if (active.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        active.decrementAndGet();
+    }
+
+    /**
+     * Record a task that completed successfully.
+     *
+     * @param latency The time taken by the task in milliseconds
+     */
+    public void succeeded(long latency) {
+        completed.increment();
+        totalLatency.add(latency);
+
+        if (System.currentTimeMillis() - windowStart >= WINDOW) {
+            synchronized (this) {
+                evaluate();
+            }
+        }
+    }
+
+    /**
+     * Record a task that was throttled by the service (429, 503 or 509).
+     */
+    public synchronized void throttled() {
+        // Back off straight away, but only once per window so a burst of failures does not collapse the pool
+        if (throttled.incrementAndGet() == 1 && isAdaptive()) {
+            setLimit(Math.max(minLimit, limit / 2), "throttled");
+        }
+
+        evaluate();
+    }
+
+    private void evaluate() {
+        long now = System.currentTimeMillis();
+        long elapsed = now - windowStart;
+
+        if (elapsed < WINDOW) {
+            return;
+        }
+
+        // Tasks completing while the window is read are counted in the next window
+        long windowCompleted = completed.sumThenReset();
+        long windowLatency = totalLatency.sumThenReset();
+        int windowThrottled = throttled.getAndSet(0);
+
+        double throughput = windowCompleted / (elapsed / 1000d);
+        double latency = windowCompleted > 0 ? (double) windowLatency / windowCompleted : 0;
+
+        if (isAdaptive() && windowThrottled == 0 && windowCompleted > 0) {
+            boolean throughputHeld = throughput >= lastThroughput * THROUGHPUT_TOLERANCE;
+            boolean latencyHeld = lastLatency == 0 || latency <= lastLatency * LATENCY_TOLERANCE;
+
+            if (throughputHeld) {
+                setLimit(Math.min(maxLimit, limit + 1), "throughput held");
+            } else if (!latencyHeld) {
+                setLimit(Math.max(minLimit, limit - 1), "latency increased");
+            }
+        }
+
+        log.debug(
+            "Window: {} tasks/s, average latency {}ms, {} throttled, {} workers",
+            FormatUtils.formatNumber(throughput),
+            FormatUtils.formatNumber(latency),
+            windowThrottled,
+            limit
+        );
+
+        lastThroughput = throughput;
+        lastLatency = latency;
+        windowStart = now;
+    }
+
+    private void setLimit(int newLimit, String reason) {
+        if (newLimit != limit) {
+            log.debug("Adjusting workers from {} to {} ({})", limit, newLimit, reason);
+            boolean raised = newLimit > limit;
+            limit = newLimit;
+
+            Runnable listener = limitRaisedListener;
+            if (raised && listener != null) {
+                listener.run();
+            }
+        }
+    }
+}
@@ -1,11 +1,18 @@
 package com.wouterbreukink.onedrive;
 
+import com.google.api.client.http.HttpResponseException;
 import com.wouterbreukink.onedrive.client.OneDriveAPIException;
 import com.wouterbreukink.onedrive.client.OneDriveItem;
 import com.wouterbreukink.onedrive.client.OneDriveProvider;
+import com.wouterbreukink.onedrive.client.UploadSessionStore;
 import com.wouterbreukink.onedrive.client.authoriser.AuthorisationProvider;
 import com.wouterbreukink.onedrive.client.resources.Drive;
 import com.wouterbreukink.onedrive.filesystem.FileSystemProvider;
+import com.wouterbreukink.onedrive.filesystem.HashCache;
+import com.wouterbreukink.onedrive.io.BandwidthLimitsFile;
+import com.wouterbreukink.onedrive.io.BandwidthLimiter;
+import com.wouterbreukink.onedrive.journal.JournalEntry;
+import com.wouterbreukink.onedrive.journal.TaskJournal;
 import com.wouterbreukink.onedrive.tasks.CheckTask;
 import com.wouterbreukink.onedrive.tasks.Task;
 import com.wouterbreukink.onedrive.tasks.TaskReporter;
@@ -19,9 +26,11 @@ import utils.string.FormatUtils;
 import utils.string.StringUtil;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import static com.wouterbreukink.onedrive.CommandLineOpts.getCommandLineOpts;
 import static com.wouterbreukink.onedrive.LogUtils.readableFileSize;
@@ -116,16 +125,48 @@ public class Main {
             return;
         }
 
+        // Remember file hashes between runs (if set)
+        HashCache hashCache = HashCache.FACTORY.none();
+        if (getCommandLineOpts().getHashIndex() != null) {
+            try {
+                hashCache = HashCache.FACTORY.fileIndex(
+                    getCommandLineOpts().getHashIndex(),
+                    new File(getCommandLineOpts().getLocalPath())
+                );
+            } catch (IOException e) {
+                log.warn("Unable to open hash index {} - {}", getCommandLineOpts().getHashIndex(), e.getMessage());
+            }
+        } else if (getCommandLineOpts().isHashXattr()) {
+            hashCache = HashCache.FACTORY.extendedAttributes(getCommandLineOpts().isDryRun());
+        }
+
         // Initialise the providers
         OneDriveProvider api;
         FileSystemProvider fileSystem;
         if (getCommandLineOpts().isDryRun()) {
             log.warn("This is a dry run - no changes will be made");
             api = OneDriveProvider.FACTORY.readOnlyApi(authoriser);
-            fileSystem = FileSystemProvider.FACTORY.readOnlyProvider();
+            fileSystem = FileSystemProvider.FACTORY.readOnlyProvider(hashCache);
         } else {
-            api = OneDriveProvider.FACTORY.readWriteApi(authoriser);
-            fileSystem = FileSystemProvider.FACTORY.readWriteProvider();
+            // Keep upload sessions between runs (if set)
+            UploadSessionStore sessionStore = getCommandLineOpts().getUploadSessions() != null
+                ? new UploadSessionStore(getCommandLineOpts().getUploadSessions())
+                : null;
+
+            api = OneDriveProvider.FACTORY.readWriteApi(authoriser, sessionStore);
+            fileSystem = FileSystemProvider.FACTORY.readWriteProvider(hashCache);
+        }
+
+        // Limit the number of concurrent network requests and disk operations (if set)
+        api = OneDriveProvider.FACTORY.slotLimited(api, new ResourceSlots(getCommandLineOpts().getNetworkSlots()));
+        fileSystem = FileSystemProvider.FACTORY.slotLimited(fileSystem, new ResourceSlots(getCommandLineOpts().getDiskSlots()));
+
+        // Limit the bandwidth used (if set), the limits file can change the limits while running
+        BandwidthLimiter.UPLOAD.setRate(getCommandLineOpts().getLimitUp() * 1024L);
+        BandwidthLimiter.DOWNLOAD.setRate(getCommandLineOpts().getLimitDown() * 1024L);
+
+        if (getCommandLineOpts().getLimitsFile() != null) {
+            new BandwidthLimitsFile(getCommandLineOpts().getLimitsFile()).watch();
         }
 
         // Report on progress
@@ -172,51 +213,120 @@ public class Main {
         log.info("Starting at root folder '{}'", rootFolder.getFullName());
 
         // Start synchronisation operation at the root
-        final TaskQueue queue = new TaskQueue();
+        final ConcurrencyController concurrency = new ConcurrencyController(
+            getCommandLineOpts().getThreads(),
+            getCommandLineOpts().getMinThreads(),
+            getCommandLineOpts().getMaxThreads()
+        );
+
+        // Large transfers are limited to half the threads, so they cannot hold up small files
+        int workers = getCommandLineOpts().getMaxThreads();
+        Map<TaskQueue.Lane, Integer> laneLimits = new EnumMap<>(TaskQueue.Lane.class);
+        laneLimits.put(TaskQueue.Lane.METADATA, getCommandLineOpts().getLaneLimit(TaskQueue.Lane.METADATA, workers));
+        laneLimits.put(TaskQueue.Lane.SMALL_TRANSFER, getCommandLineOpts().getLaneLimit(TaskQueue.Lane.SMALL_TRANSFER, workers));
+        laneLimits.put(TaskQueue.Lane.LARGE_TRANSFER, getCommandLineOpts().getLaneLimit(TaskQueue.Lane.LARGE_TRANSFER, Math.max(1, workers / 2)));
+        laneLimits.put(TaskQueue.Lane.MAINTENANCE, getCommandLineOpts().getLaneLimit(TaskQueue.Lane.MAINTENANCE, workers));
+
+        // Limit the amount of data in flight for large transfers, so the remaining bandwidth goes to small files
+        Map<TaskQueue.Lane, Long> laneBudgets = new EnumMap<>(TaskQueue.Lane.class);
+        laneBudgets.put(TaskQueue.Lane.LARGE_TRANSFER, getCommandLineOpts().getLargeTransferBudget() * 1024L * 1024L);
+
+        final TaskQueue queue = new TaskQueue(concurrency, laneLimits, laneBudgets, getCommandLineOpts().getQueueCapacity());
 
         File localFile = new File(getCommandLineOpts().getLocalPath());
+        Task.TaskOptions taskOptions = new Task.TaskOptions(queue, api, fileSystem, reporter);
+
+        // Record progress so an interrupted run can be resumed
+        TaskJournal journal = null;
+        Collection<JournalEntry> outstanding = Collections.emptyList();
+        if (getCommandLineOpts().getJournalFile() != null) {
+            if (getCommandLineOpts().isDryRun()) {
+                log.warn("Task journal is not used for a dry run");
+            } else {
+                if (getCommandLineOpts().isResume()) {
+                    outstanding = TaskJournal.readOutstanding(getCommandLineOpts().getJournalFile());
+                }
 
-        queue.add(
-            new CheckTask(
-                new Task.TaskOptions(queue, api, fileSystem, reporter),
-                rootFolder, rootFolder, localFile, localFile
-            )
-        );
+                journal = new TaskJournal(getCommandLineOpts().getJournalFile());
+                queue.setJournal(journal);
+            }
+        }
 
-        // Get a bunch of threads going
-        ExecutorService executorService = Executors.newFixedThreadPool(getCommandLineOpts().getThreads());
-
-        for (int i = 0; i < getCommandLineOpts().getThreads(); i++) {
-            executorService.submit(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        //noinspection InfiniteLoopStatement
-                        while (true) {
-                            Task taskToRun = null;
-                            try {
-                                taskToRun = queue.take();
-                                taskToRun.run();
-                            } finally {
-                                if (taskToRun != null) {
-                                    queue.done(taskToRun);
-                                }
-                            }
-                        }
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
+        if (!outstanding.isEmpty()) {
+            log.info("Resuming {} unfinished tasks from journal", outstanding.size());
+
+            for (JournalEntry entry : outstanding) {
+                try {
+                    queue.add(Task.fromJournal(entry, taskOptions, rootFolder, localFile));
+                } catch (IllegalArgumentException e) {
+                    log.warn("Not resuming {} task for {} - {}", entry.getType(), entry.getLocalPath(), e.getMessage());
+                } catch (IOException e) {
+                    if (isNotFound(e)) {
+                        // The remote item has gone since, a new run would not find it either
+                        log.warn("Not resuming {} task for {} - the remote item no longer exists", entry.getType(), entry.getLocalPath());
+                        continue;
                     }
+
+                    // The journal is only rewritten once started, so leaving now keeps the unfinished tasks
+                    log.error("Unable to resume {} task for {} - {}", entry.getType(), entry.getLocalPath(), e.getMessage());
+                    log.error("The journal has been kept, re-run the application with --resume to try again");
+                    hashCache.close();
+                    return;
                 }
-            });
+            }
+        } else {
+            if (getCommandLineOpts().isResume()) {
+                log.info("No unfinished tasks in journal, starting at the root");
+            }
+
+            queue.add(new CheckTask(taskOptions, rootFolder, rootFolder, localFile, localFile));
+        }
+
+        if (journal != null) {
+            journal.start();
+        }
+
+        if (concurrency.isAdaptive()) {
+            log.info(
+                "Adapting number of threads between {} and {}",
+                getCommandLineOpts().getMinThreads(),
+                getCommandLineOpts().getMaxThreads()
+            );
+        }
+
+        // Get a bunch of threads going, the concurrency controller decides how many of them are active
+        TaskExecutor executor = new TaskExecutor(queue);
+
+        if (!getCommandLineOpts().isVirtualThreads() || !executor.startVirtualThreads()) {
+            if (getCommandLineOpts().isVirtualThreads()) {
+                log.warn("Virtual threads require Java 21 or later - using platform threads");
+            }
+
+            executor.startPlatformThreads(getCommandLineOpts().getMaxThreads());
         }
 
         queue.waitForCompletion();
+
+        if (journal != null) {
+            journal.close();
+        }
+
+        hashCache.close();
+
         log.info("Synchronisation complete");
         reporter.report();
 
         System.exit(0);
     }
 
+    private static boolean isNotFound(IOException e) {
+        int code = e instanceof HttpResponseException ? ((HttpResponseException) e).getStatusCode()
+            : e instanceof OneDriveAPIException ? ((OneDriveAPIException) e).getCode()
+            : 0;
+
+        return code == 404;
+    }
+
     public static String getVersion() {
         if (version == null) {
             version = FileUtil.getFileContent(Main.class.getResourceAsStream("/version"));
@@ -0,0 +1,71 @@
+package com.wouterbreukink.onedrive;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of operations using a shared resource, such as the network or the local disk, at the same time.
+ * <p>
+ * Workers only hold a slot while they actually use the resource, so the number of tasks in flight can be much
+ * larger than the number of slots.
+ */
+public class ResourceSlots {
+    private final Semaphore slots;
+
+    /**
+     * @param slots The maximum number of concurrent operations, zero or less for no limit
+     */
+    public ResourceSlots(int slots) {
+        this.slots = slots > 0 ? new Semaphore(slots) : null;
+    }
+
+    public boolean isLimited() {
+        return slots != null;
+    }
+
+    public <T> T call(IOCall<T> call) throws IOException {
+        acquire();
+        try {
+            return call.call();
+        } finally {
+            release();
+        }
+    }
+
+    public void run(IORunnable runnable) throws IOException {
+        acquire();
+        try {
+            runnable.run();
+        } finally {
+            release();
+        }
+    }
+
+    private void acquire() throws InterruptedIOException {
+        if (slots == null) {
+            return;
+        }
+
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a resource slot");
+        }
+    }
+
+    private void release() {
+        if (slots != null) {
+            slots.release();
+        }
+    }
+
+    public interface IOCall<T> {
+        T call() throws IOException;
+    }
+
+    public interface IORunnable {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,97 @@
+package com.wouterbreukink.onedrive;
+
+import com.wouterbreukink.onedrive.tasks.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs the tasks of a queue, either on a fixed pool of platform threads or on a virtual thread per task.
+ * <p>
+ * Virtual threads are only available on Java 21 and later, they are looked up at runtime so the client still runs
+ * on older versions and falls back to platform threads there.
+ */
+public class TaskExecutor {
+    private static final Logger log = LoggerFactory.getLogger(TaskExecutor.class);
+
+    private final TaskQueue queue;
+
+    public TaskExecutor(TaskQueue queue) {
+        this.queue = queue;
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Start a fixed number of platform threads, each running tasks from the queue until the program exits. The
+     * concurrency controller of the queue decides how many of them are active.
+     *
+     * @param threads The number of threads to start
+     */
+    public void startPlatformThreads(int threads) {
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+
+        for (int i = 0; i < threads; i++) {
+            executorService.submit(() -> {
+                try {
+                    //noinspection InfiniteLoopStatement
+                    while (true) {
+                        runTask(queue.take());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+    }
+
+    /**
+     * Start a dispatcher that runs each task from the queue on its own virtual thread. The number of tasks in flight
+     * is limited by the queue, the use of the network and disk by the resource slots of the providers.
+     *
+     * @return false if virtual threads are not supported by this Java runtime
+     */
+    public boolean startVirtualThreads() {
+        final ExecutorService executorService = newVirtualThreadExecutor();
+
+        if (executorService == null) {
+            return false;
+        }
+
+        Thread dispatcher = new Thread(() -> {
+            try {
+                //noinspection InfiniteLoopStatement
+                while (true) {
+                    final Task task = queue.take();
+                    executorService.execute(() -> runTask(task));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "task-dispatcher");
+
+        dispatcher.setDaemon(true);
+        dispatcher.start();
+
+        log.debug("Running tasks on virtual threads");
+        return true;
+    }
+
+    private void runTask(Task task) {
+        try {
+            task.run();
+        } finally {
+            queue.done(task);
+        }
+    }
+}
@@ -1,34 +1,384 @@
 package com.wouterbreukink.onedrive;
 
+import com.wouterbreukink.onedrive.journal.JournalEntry;
+import com.wouterbreukink.onedrive.journal.TaskJournal;
 import com.wouterbreukink.onedrive.tasks.Task;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Queue of tasks waiting to be run, split into lanes that each have their own concurrency limit.
+ * <p>
+ * Within a lane tasks are ordered by {@link Task#compareTo(Task)}, tasks that compare equal are run in the order
+ * they were queued. Across lanes a worker picks the lane that uses the smallest share of its limit, so bulk transfers
+ * never starve the traversal that discovers new work. A lane may also limit the combined size of the transfers it
+ * runs, so a few huge files cannot take all of the bandwidth.
+ * <p>
+ * Adding and taking tasks does not lock, the lanes are concurrent skip lists and the running counts are claimed with
+ * compare-and-set. A lock is only taken by workers that find no work and go to sleep, and by producers waking them.
+ * <p>
+ * The queue has a soft capacity. Tasks expanding into many children check {@link #hasCapacity()} and {@link #park}
+ * a continuation once it is reached, the continuation is re-admitted when the queue has drained below three
+ * quarters of its capacity. Tasks that have yet to expand check {@link #canExpand()} first and {@link #defer}
+ * themselves while the queue is full or a continuation is outstanding, so a folder is only listed once its children
+ * can be queued. Continuations are re-admitted before deferred tasks. {@link #add} itself never blocks, as a worker
+ * waiting for space could deadlock the pool.
+ */
 public class TaskQueue {
-    private final PriorityBlockingQueue<Task> queue = new PriorityBlockingQueue<Task>();
-    private final Object suspendedMonitor = new Object();
+    private static final Logger log = LoggerFactory.getLogger(TaskQueue.class);
+
+    private final Map<Lane, LaneState> lanes = new EnumMap<>(Lane.class);
+    private final DelayQueue<DelayedTask> retryQueue = new DelayQueue<DelayedTask>();
+    private final ConcurrentSkipListMap<QueuedTask, Task> parked = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<QueuedTask, Task> deferred = new ConcurrentSkipListMap<>();
+    // Continuations parked or queued but not yet run
+    private final AtomicInteger continuations = new AtomicInteger();
+    // Orders tasks that compare equal by the time they were queued
+    private final AtomicLong sequence = new AtomicLong();
     private final Object doneMonitor = new Object();
     private AtomicInteger tasksInProgress = new AtomicInteger(0);
-    private volatile boolean suspended = false;
+    // Instant (in millis) before which no work is handed out to the workers
+    private final AtomicLong resumeAt = new AtomicLong(0);
+    private final ConcurrencyController concurrency;
+    private final int capacity;
+    // Number of tasks waiting in the lanes
+    private final AtomicInteger queued = new AtomicInteger();
+    // Only used by idle workers
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private TaskJournal journal;
+
+    public TaskQueue(ConcurrencyController concurrency, Map<Lane, Integer> laneLimits, int capacity) {
+        this(concurrency, laneLimits, new EnumMap<>(Lane.class), capacity);
+    }
+
+    /**
+     * @param concurrency The controller limiting the number of active workers
+     * @param laneLimits  The maximum number of running tasks per lane, unlimited if absent
+     * @param laneBudgets The maximum number of bytes transferred by the running tasks of a lane, unlimited if absent
+     * @param capacity    The soft capacity of the queue, 0 for unlimited
+     */
+    public TaskQueue(ConcurrencyController concurrency, Map<Lane, Integer> laneLimits, Map<Lane, Long> laneBudgets, int capacity) {
+        this.concurrency = concurrency;
+        this.capacity = capacity;
+
+        // Workers waiting for a slot are woken when the limit is raised, the first one wakes the next
+        concurrency.setLimitRaisedListener(this::signalWork);
+
+        for (Lane lane : Lane.values()) {
+            Integer limit = laneLimits.get(lane);
+            Long budget = laneBudgets.get(lane);
+            lanes.put(lane, new LaneState(limit != null ? limit : Integer.MAX_VALUE, budget != null ? budget : 0));
+        }
+
+        // Re-admit delayed tasks once their retry deadline expires
+        Thread retryTimer = new Thread(() -> {
+            try {
+                //noinspection InfiniteLoopStatement
+                while (true) {
+                    enqueue(retryQueue.take().task);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "task-retry-timer");
+
+        retryTimer.setDaemon(true);
+        retryTimer.start();
+    }
+
+    /**
+     * Record queued and completed tasks in the given journal, must be set before any task is added.
+     */
+    public void setJournal(TaskJournal journal) {
+        this.journal = journal;
+    }
+
+    private void journalEnqueued(Task t) {
+        if (journal != null) {
+            JournalEntry entry = t.journalEntry();
+            if (entry != null) {
+                journal.enqueued(entry);
+            }
+        }
+    }
 
     public void add(Task t) {
         tasksInProgress.incrementAndGet();
-        queue.add(t);
+        journalEnqueued(t);
+        enqueue(t);
+    }
+
+    private void enqueue(Task t) {
+        lanes.get(t.lane()).tasks.put(new QueuedTask(t, sequence.getAndIncrement()), t);
+        queued.incrementAndGet();
+        signalWork();
+    }
+
+    /**
+     * Check whether the queue is below its capacity. This is advisory only, producers check it before adding
+     * each task so the capacity may be exceeded by the number of concurrent producers.
+     */
+    public boolean hasCapacity() {
+        return capacity <= 0 || queued.get() < capacity;
+    }
+
+    /**
+     * Check whether a task may expand into children now. This is only the case while the queue is below its
+     * capacity and no continuation is outstanding, which bounds the number of partly queued expansions by the
+     * number of workers.
+     */
+    public boolean canExpand() {
+        return capacity <= 0 || queued.get() < capacity && continuations.get() == 0;
+    }
+
+    /**
+     * Hold back the continuation of a task until the queue has drained, deepest tasks are re-admitted first. The
+     * continuation must call {@link #continued()} when it runs.
+     *
+     * @param t The continuation to re-admit once there is space in the queue
+     */
+    public void park(Task t) {
+        tasksInProgress.incrementAndGet();
+        continuations.incrementAndGet();
+        journalEnqueued(t);
+
+        parked.put(new QueuedTask(t, sequence.getAndIncrement()), t);
+        // Space may have become available since the caller checked
+        admitParked();
+    }
+
+    /**
+     * Record that a parked continuation has started, after which other tasks may expand again.
+     */
+    public void continued() {
+        continuations.decrementAndGet();
+        admitParked();
+    }
+
+    /**
+     * Hold back a task that has yet to expand into children until the queue has drained and all continuations
+     * have been re-admitted.
+     *
+     * @param t The task to re-admit once it can expand
+     */
+    public void defer(Task t) {
+        tasksInProgress.incrementAndGet();
+        journalEnqueued(t);
+
+        deferred.put(new QueuedTask(t, sequence.getAndIncrement()), t);
+        admitParked();
+    }
+
+    private void admitParked() {
+        while (capacity <= 0 || queued.get() < capacity * 3 / 4) {
+            Map.Entry<QueuedTask, Task> entry = parked.pollFirstEntry();
+
+            if (entry == null && continuations.get() == 0) {
+                entry = deferred.pollFirstEntry();
+            }
+
+            if (entry == null) {
+                return;
+            }
+
+            enqueue(entry.getValue());
+        }
+    }
+
+    /**
+     * Schedule a task to be re-admitted to the queue once the given delay has expired.
+     *
+     * @param t           The task to retry
+     * @param delayMillis The delay before the task becomes available again
+     */
+    public void retry(Task t, long delayMillis) {
+        if (delayMillis <= 0) {
+            add(t);
+            return;
+        }
+
+        tasksInProgress.incrementAndGet();
+        journalEnqueued(t);
+        retryQueue.add(new DelayedTask(t, delayMillis));
     }
 
     public Task take() throws InterruptedException {
-        // Wait for the queue to be active
-        synchronized (suspendedMonitor) {
-            while (suspended) {
-                suspendedMonitor.wait();
+        while (true) {
+            // Wait for the queue to be active
+            long remaining = resumeAt.get() - System.currentTimeMillis();
+            if (remaining > 0) {
+                awaitWork(remaining);
+                continue;
+            }
+
+            if (!concurrency.tryAcquire()) {
+                awaitWork(0);
+                continue;
+            }
+
+            Task t = poll();
+            if (t != null) {
+                admitParked();
+
+                // Wake another worker for any remaining work, such as after the concurrency limit was raised
+                if (waiting.get() > 0 && hasWork()) {
+                    signalWork();
+                }
+
+                return t;
+            }
+
+            concurrency.release();
+
+            // Work added while the slot was held may have been missed by a worker waiting for the slot
+            if (waiting.get() > 0 && hasWork()) {
+                signalWork();
             }
+
+            awaitWork(0);
         }
+    }
+
+    /**
+     * Claim a running slot in the most suitable lane and take its first task.
+     *
+     * @return The task, or null if no lane with free slots has any work
+     */
+    private Task poll() {
+        while (true) {
+            LaneState lane = selectLane();
+            if (lane == null) {
+                return null;
+            }
+
+            if (!lane.claim()) {
+                // Another worker took the last slot, look again
+                continue;
+            }
+
+            Map.Entry<QueuedTask, Task> entry = lane.tasks.pollFirstEntry();
+            if (entry == null) {
+                // Another worker took the last task
+                lane.running.decrementAndGet();
+                continue;
+            }
+
+            if (!lane.reserve(entry.getValue().transferSize())) {
+                // Another worker used up the byte budget, put the task back
+                lane.tasks.put(entry.getKey(), entry.getValue());
+                lane.running.decrementAndGet();
+                continue;
+            }
 
-        return queue.take();
+            queued.decrementAndGet();
+            return entry.getValue();
+        }
+    }
+
+    private LaneState selectLane() {
+        LaneState selected = null;
+        QueuedTask selectedFirst = null;
+
+        for (LaneState lane : lanes.values()) {
+            if (lane.running.get() >= lane.limit) {
+                continue;
+            }
+
+            Map.Entry<QueuedTask, Task> first = lane.tasks.firstEntry();
+            if (first == null || !lane.fits(first.getValue().transferSize())) {
+                continue;
+            }
+
+            if (selected != null) {
+                int load = Double.compare(lane.load(), selected.load());
+                if (load > 0 || load == 0 && first.getKey().compareTo(selectedFirst) >= 0) {
+                    continue;
+                }
+            }
+
+            selected = lane;
+            selectedFirst = first.getKey();
+        }
+
+        return selected;
+    }
+
+    private boolean hasWork() {
+        if (resumeAt.get() > System.currentTimeMillis() || !concurrency.hasCapacity()) {
+            return false;
+        }
+
+        for (LaneState lane : lanes.values()) {
+            if (lane.running.get() >= lane.limit) {
+                continue;
+            }
+
+            Map.Entry<QueuedTask, Task> first = lane.tasks.firstEntry();
+            if (first != null && lane.fits(first.getValue().transferSize())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Sleep until new work may be available, or until the timeout expires.
+     *
+     * @param timeoutMillis The maximum time to wait, 0 to wait until signalled
+     */
+    private void awaitWork(long timeoutMillis) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            waiting.incrementAndGet();
+            try {
+                // Check again now that producers know we are waiting, so their signal cannot be missed
+                if (timeoutMillis > 0) {
+                    available.await(timeoutMillis, TimeUnit.MILLISECONDS);
+                } else if (!hasWork()) {
+                    available.await();
+                }
+            } finally {
+                waiting.decrementAndGet();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void signalWork() {
+        if (waiting.get() == 0) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void done(Task t) {
+        LaneState lane = lanes.get(t.lane());
+        lane.bytes.addAndGet(-t.transferSize());
+        lane.running.decrementAndGet();
+        concurrency.release();
+        signalWork();
+
         if (tasksInProgress.decrementAndGet() == 0) {
             synchronized (doneMonitor) {
                 doneMonitor.notifyAll();
@@ -39,29 +389,155 @@ public class TaskQueue {
     public void waitForCompletion() throws InterruptedException {
         while (tasksInProgress.get() > 0) {
             synchronized (doneMonitor) {
-                doneMonitor.wait();
+                if (tasksInProgress.get() > 0) {
+                    doneMonitor.wait();
+                }
             }
         }
     }
 
+    /**
+     * Stop handing out work until the given number of seconds have passed. This does not block the caller, the
+     * deadline is only extended if it is later than any suspension already in place.
+     *
+     * @param seconds The number of seconds to suspend the queue for
+     */
     public void suspend(int seconds) {
-        synchronized (suspendedMonitor) {
-            if (suspended) {
-                return;
-            }
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
 
-            suspended = true;
+        if (resumeAt.getAndAccumulate(deadline, Math::max) < deadline) {
+            log.debug("Suspending task queue for {} seconds", seconds);
         }
+    }
 
-        try {
-            Thread.sleep(seconds * 1000);
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-        } finally {
-            synchronized (suspendedMonitor) {
-                suspended = false;
-                suspendedMonitor.notifyAll();
+    public void succeeded(Task t, long elapsedMillis) {
+        concurrency.succeeded(elapsedMillis);
+
+        if (journal != null) {
+            journal.completed(t.getTaskId());
+        }
+    }
+
+    public void throttled(Task t) {
+        concurrency.throttled();
+    }
+
+    public enum Lane {
+        // Folder listing and comparison
+        METADATA("metadata"),
+        // Uploads and downloads of files that fit in a single request
+        SMALL_TRANSFER("small"),
+        // Uploads and downloads of files split into multiple requests
+        LARGE_TRANSFER("large"),
+        // Deletes and property updates
+        MAINTENANCE("maintenance");
+
+        private final String name;
+
+        Lane(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public static Lane fromName(String name) {
+            for (Lane lane : values()) {
+                if (lane.name.equalsIgnoreCase(name)) {
+                    return lane;
+                }
             }
+
+            throw new IllegalArgumentException("Unknown lane " + name);
+        }
+    }
+
+    private static class LaneState {
+        private final ConcurrentSkipListMap<QueuedTask, Task> tasks = new ConcurrentSkipListMap<>();
+        private final AtomicInteger running = new AtomicInteger();
+        // Bytes transferred by the running tasks
+        private final AtomicLong bytes = new AtomicLong();
+        private final int limit;
+        private final long budget;
+
+        private LaneState(int limit, long budget) {
+            this.limit = limit;
+            this.budget = budget;
+        }
+
+        /**
+         * A task always fits in an idle lane, so transfers larger than the budget still run one at a time.
+         */
+        private boolean fits(long size) {
+            long current = bytes.get();
+            return budget <= 0 || current == 0 || current + size <= budget;
+        }
+
+        private boolean reserve(long size) {
+            long current;
+            do {
+                current = bytes.get();
+                if (budget > 0 && current > 0 && current + size > budget) {
+                    return false;
+                }
+            } while (!bytes.compareAndSet(current, current + size));
+
+            return true;
+        }
+
+        private boolean claim() {
+            int current;
+            do {
+                current = running.get();
+                if (current >= limit) {
+                    return false;
+                }
+            } while (!running.compareAndSet(current, current + 1));
+
+            return true;
+        }
+
+        private double load() {
+            return (double) running.get() / limit;
+        }
+    }
+
+    private static class QueuedTask implements Comparable<QueuedTask> {
+        private final Task task;
+        private final long sequence;
+
+        private QueuedTask(Task task, long sequence) {
+            this.task = task;
+            this.sequence = sequence;
+        }
+
+        @Override
+        @SuppressWarnings("NullableProblems")
+        public int compareTo(QueuedTask o) {
+            int order = task.compareTo(o.task);
+            return order != 0 ? order : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    private static class DelayedTask implements Delayed {
+        private final Task task;
+        private final long readyAt;
+
+        private DelayedTask(Task task, long delayMillis) {
+            this.task = task;
+            this.readyAt = System.currentTimeMillis() + delayMillis;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(readyAt - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        @SuppressWarnings("NullableProblems")
+        public int compareTo(Delayed o) {
+            return Long.compare(readyAt, ((DelayedTask) o).readyAt);
         }
     }
 }
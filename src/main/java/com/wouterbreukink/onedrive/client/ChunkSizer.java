@@ -0,0 +1,94 @@
+package com.wouterbreukink.onedrive.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import utils.string.FormatUtils;
+
+/**
+ * Chooses the size of upload session chunks from the measured throughput of earlier chunks.
+ * <p>
+ * Sizes are multiples of 320 KiB below 60 MiB, as required by the service, and small enough for two chunks to fit
+ * in the {@link #READ_AHEAD_BUDGET}: the chunk being sent and the chunk read ahead. The size doubles after every chunk
+ * whose throughput held up, until throughput drops or a chunk fails. From then on it grows by one step at a time.
+ * A drop in throughput undoes the last increase, and a failed chunk halves the size so less is sent again.
+ */
+public class ChunkSizer {
+    private static final Logger log = LoggerFactory.getLogger(ChunkSizer.class);
+
+    // Chunk sizes must be a multiple of this
+    public static final int STEP = 320 * 1024;
+    // Bytes all upload sessions together may hold in chunks read ahead, including chunks kept for a retry
+    public static final long READ_AHEAD_BUDGET = 64L * 1024 * 1024;
+    // Chunks must be smaller than 60 MiB, two of the largest chunks fill the read ahead budget
+    public static final int MAX_STEPS = (int) Math.min(60 * 1024 * 1024 / STEP - 1, READ_AHEAD_BUDGET / 2 / STEP);
+    // Start with 5MB as per MS recommendation
+    public static final int INITIAL_STEPS = 16;
+
+    // Throughput may drop by this fraction without being treated as a regression
+    private static final double THROUGHPUT_TOLERANCE = 0.9;
+
+    private int steps = INITIAL_STEPS;
+    private int previousSteps;
+    private boolean slowStart = true;
+    private double lastThroughput;
+
+    /**
+     * @return The size of the next chunk in bytes
+     */
+    public synchronized int getChunkSize() {
+        return steps * STEP;
+    }
+
+    /**
+     * Record a chunk that was accepted by the service.
+     *
+     * @param length  The length of the chunk in bytes
+     * @param cutSize The chunk size when the chunk was cut, which may be smaller or larger than the current size
+     * @param time    The time taken to send the chunk in milliseconds
+     */
+    public synchronized void succeeded(long length, long cutSize, long time) {
+        // Chunks shortened by the end of the file or of a missing range tell us nothing about their size
+        if (length < cutSize || time <= 0) {
+            return;
+        }
+
+        double throughput = length / (time / 1000d);
+
+        if (lastThroughput > 0 && throughput < lastThroughput * THROUGHPUT_TOLERANCE && previousSteps > 0) {
+            slowStart = false;
+            setSteps(previousSteps, throughput, "throughput dropped");
+        } else {
+            setSteps(slowStart ? steps * 2 : steps + 1, throughput, "throughput held");
+        }
+
+        lastThroughput = throughput;
+    }
+
+    /**
+     * Record a chunk that failed or timed out.
+     */
+    public synchronized void failed() {
+        slowStart = false;
+        lastThroughput = 0;
+        setSteps(steps / 2, 0, "chunk failed");
+    }
+
+    private void setSteps(int newSteps, double throughput, String reason) {
+        newSteps = Math.max(1, Math.min(MAX_STEPS, newSteps));
+
+        if (newSteps != steps) {
+            log.trace(
+                "Adjusting chunk size from {}KB to {}KB at {}KB/s ({})",
+                steps * STEP / 1024,
+                newSteps * STEP / 1024,
+                FormatUtils.formatNumber(throughput / 1024),
+                reason
+            );
+
+            previousSteps = steps;
+            steps = newSteps;
+        } else {
+            previousSteps = 0;
+        }
+    }
+}
@@ -37,6 +37,16 @@ public interface OneDriveItem {
 
     OneDriveItem getParent();
 
+    /**
+     * @return The tag that changes with any change of the item, or null if unknown
+     */
+    String getETag();
+
+    /**
+     * @return The tag that changes with the content of the item, or null if unknown
+     */
+    String getCTag();
+
     class FACTORY {
         public static OneDriveItem create(final OneDriveItem parent, final String name, final boolean isDirectory) {
             return new OneDriveItem() {
@@ -94,6 +104,16 @@ public interface OneDriveItem {
                 public OneDriveItem getParent() {
                     return parent;
                 }
+
+                @Override
+                public String getETag() {
+                    return null;
+                }
+
+                @Override
+                public String getCTag() {
+                    return null;
+                }
             };
         }
 
@@ -160,6 +180,16 @@ public interface OneDriveItem {
                 public OneDriveItem getParent() {
                     return parent;
                 }
+
+                @Override
+                public String getETag() {
+                    return item.geteTag();
+                }
+
+                @Override
+                public String getCTag() {
+                    return item.getcTag();
+                }
             };
         }
 
@@ -232,6 +262,16 @@ public interface OneDriveItem {
                 public OneDriveItem getParent() {
                     return null;
                 }
+
+                @Override
+                public String getETag() {
+                    return null;
+                }
+
+                @Override
+                public String getCTag() {
+                    return null;
+                }
             };
         }
     }
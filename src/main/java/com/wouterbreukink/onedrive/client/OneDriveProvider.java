@@ -1,12 +1,16 @@
 package com.wouterbreukink.onedrive.client;
 
+import com.wouterbreukink.onedrive.ResourceSlots;
 import com.wouterbreukink.onedrive.client.authoriser.AuthorisationProvider;
 import com.wouterbreukink.onedrive.client.downloader.ResumableDownloaderProgressListener;
 import com.wouterbreukink.onedrive.client.resources.Drive;
+import com.wouterbreukink.onedrive.filesystem.FileHashes;
+import com.wouterbreukink.onedrive.filesystem.hash.MultiHasher;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.Date;
+import java.util.Set;
 
 public interface OneDriveProvider {
     // 1 minute timeout
@@ -28,21 +32,52 @@ public interface OneDriveProvider {
 
     OneDriveItem getPath(String path) throws IOException;
 
+    OneDriveItem getItem(String id) throws IOException;
+
     // Write operations
 
-    OneDriveItem replaceFile(OneDriveItem parent, File file) throws IOException;
+    /**
+     * Upload the content of a file, replacing the existing content.
+     *
+     * @param hasher Hasher that the uploaded content is fed through
+     */
+    OneDriveItem replaceFile(OneDriveItem parent, File file, MultiHasher hasher) throws IOException;
 
-    OneDriveItem uploadFile(OneDriveItem parent, File file) throws IOException;
+    /**
+     * Upload a new file.
+     *
+     * @param hasher Hasher that the uploaded content is fed through
+     */
+    OneDriveItem uploadFile(OneDriveItem parent, File file, MultiHasher hasher) throws IOException;
 
     OneDriveUploadSession startUploadSession(OneDriveItem parent, File file) throws IOException;
 
     void uploadChunk(OneDriveUploadSession session) throws IOException;
 
+    /**
+     * Ask the service which parts of an upload session it has received, so that only the missing parts are sent
+     * again. Completes the session if the final chunk turns out to have been received.
+     */
+    void refreshUploadSession(OneDriveUploadSession session) throws IOException;
+
     OneDriveItem updateFile(OneDriveItem item, Date createdDate, Date modifiedDate) throws IOException;
 
     OneDriveItem createFolder(OneDriveItem parent, File target) throws IOException;
 
-    void download(OneDriveItem item, File target, ResumableDownloaderProgressListener progressListener) throws IOException;
+    /**
+     * Download the content of a file, hashing it on the way.
+     *
+     * @return The requested hashes of the downloaded content, or null if nothing was downloaded
+     */
+    FileHashes download(OneDriveItem item, File target, ResumableDownloaderProgressListener progressListener, Set<MultiHasher.Algorithm> algorithms) throws IOException;
+
+    /**
+     * Download the content of a file over several connections at once.
+     *
+     * @param ranges The number of ranges downloaded concurrently
+     * @return The requested hashes of the downloaded content, or null if they were not computed while downloading
+     */
+    FileHashes downloadRanges(OneDriveItem item, File target, int ranges, Set<MultiHasher.Algorithm> algorithms) throws IOException;
 
     void delete(OneDriveItem remoteFile) throws IOException;
 
@@ -51,8 +86,16 @@ public interface OneDriveProvider {
             return new ROOneDriveProvider(authoriser);
         }
 
-        public static OneDriveProvider readWriteApi(AuthorisationProvider authoriser) {
-            return new RWOneDriveProvider(authoriser);
+        /**
+         * @param sessionStore Store of upload sessions, so interrupted uploads can be continued in a later run, or
+         *                     null to start every upload afresh
+         */
+        public static OneDriveProvider readWriteApi(AuthorisationProvider authoriser, UploadSessionStore sessionStore) {
+            return new RWOneDriveProvider(authoriser, sessionStore);
+        }
+
+        public static OneDriveProvider slotLimited(OneDriveProvider api, ResourceSlots slots) {
+            return slots.isLimited() ? new SlotLimitedOneDriveProvider(api, slots) : api;
         }
     }
 }
@@ -4,18 +4,30 @@ import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
-import com.google.api.client.util.BackOff;
-import com.google.api.client.util.BackOffUtils;
-import com.google.api.client.util.ExponentialBackOff;
 import com.google.api.client.util.Sleeper;
 import com.wouterbreukink.onedrive.client.authoriser.AuthorisationProvider;
+import com.wouterbreukink.onedrive.retry.DecorrelatedJitterBackOff;
+import com.wouterbreukink.onedrive.retry.RetryAfter;
+import com.wouterbreukink.onedrive.retry.RetryPolicy;
 
 import java.io.IOException;
 
+/**
+ * Handles unsuccessful responses of a single request, a new instance must be used for every request.
+ * <p>
+ * Only short transient failures are retried in place. Throttling responses, and responses asking for a longer
+ * delay than {@link #MAX_INLINE_DELAY}, are passed on so the task queue can reschedule the work without keeping
+ * a worker busy.
+ */
 class OneDriveResponseHandler implements HttpUnsuccessfulResponseHandler {
+    // Transient server errors are retried in place at most twice, waiting 0.5 - 5 seconds
+    private static final RetryPolicy REQUEST_POLICY = new RetryPolicy(3, 500, 5000);
+    private static final long MAX_INLINE_DELAY = 5000;
+
     private final Sleeper sleeper = Sleeper.DEFAULT;
-    private final BackOff backOff = new ExponentialBackOff();
+    private final DecorrelatedJitterBackOff backOff = REQUEST_POLICY.newBackOff();
     private final AuthorisationProvider authoriser;
+    private int tries = 1;
 
     public OneDriveResponseHandler(AuthorisationProvider authoriser) {
         this.authoriser = authoriser;
@@ -33,11 +45,20 @@ class OneDriveResponseHandler implements HttpUnsuccessfulResponseHandler {
         }
 
         // check if back-off is required for this response
-        if (isRequired(response)) {
+        if (isRequired(response) && REQUEST_POLICY.canRetry(tries)) {
+            long retryAfter = RetryAfter.getDelay(response.getHeaders());
+            long delay = retryAfter >= 0 ? retryAfter : backOff.nextDelay();
+
+            if (delay > MAX_INLINE_DELAY) {
+                return false;
+            }
+
             try {
-                return BackOffUtils.next(sleeper, backOff);
+                sleeper.sleep(delay);
+                tries++;
+                return true;
             } catch (InterruptedException exception) {
-                // ignore
+                Thread.currentThread().interrupt();
             }
         }
 
@@ -45,6 +66,7 @@ class OneDriveResponseHandler implements HttpUnsuccessfulResponseHandler {
     }
 
     public boolean isRequired(HttpResponse httpResponse) {
-        return httpResponse.getStatusCode() / 100 == 5 || httpResponse.getStatusCode() == 429;
+        // Throttling (429/509) is left to the task queue, which suspends all work rather than a single request
+        return httpResponse.getStatusCode() / 100 == 5 && httpResponse.getStatusCode() != 509;
     }
 }
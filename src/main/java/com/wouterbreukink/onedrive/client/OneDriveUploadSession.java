@@ -1,39 +1,115 @@
 package com.wouterbreukink.onedrive.client;
 
+import com.google.api.client.http.HttpContent;
+import com.wouterbreukink.onedrive.filesystem.FileHashes;
+import com.wouterbreukink.onedrive.filesystem.hash.MultiHasher;
+import com.wouterbreukink.onedrive.io.BufferPool;
+import com.wouterbreukink.onedrive.io.FileRegionContent;
+import com.wouterbreukink.onedrive.io.HashingContent;
+import com.wouterbreukink.onedrive.io.PrefetchedContent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.Arrays;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * State of a multi-part upload. The file channel stays open until the upload completes or the session is closed.
+ * <p>
+ * While a chunk is being sent the next chunk is read ahead into pooled buffers, so disk reads overlap with the
+ * network. A chunk that was not read ahead, such as the first one, is sent straight from the file channel. The
+ * chunks read ahead by all sessions together are limited to {@link ChunkSizer#READ_AHEAD_BUDGET}, a chunk that does
+ * not fit while other sessions read ahead is sent straight from the file channel as well.
+ */
+public class OneDriveUploadSession implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(OneDriveUploadSession.class);
+
+    private static final ExecutorService PREFETCH_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "chunk-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final AtomicLong readAheadReserved = new AtomicLong();
 
-public class OneDriveUploadSession {
-    // Upload in chunks of 5MB as per MS recommendation
-    private static final int CHUNK_SIZE = 5 * 1024 * 1024;
     private final File file;
     private final String uploadUrl;
-    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final long fileSize;
+    private final long fileModified;
     private OneDriveItem parent;
     private Range[] ranges;
+    private Date expirationDateTime;
     private long totalUploaded;
     private long lastUploaded;
     private OneDriveItem item;
+    private final ChunkSizer sizer = new ChunkSizer();
 
-    public OneDriveUploadSession(OneDriveItem parent, File file, String uploadUrl, String[] ranges) throws IOException {
+    // Hashes of the content the server has accepted, null once a chunk was skipped or sent twice
+    private MultiHasher hasher;
+    // Whether the session was stored by an earlier run and no chunk has been sent since
+    private boolean restored;
+    private long hashedLength;
+    // Hashes including the chunk being sent, adopted once the server accepts the whole chunk
+    private MultiHasher pendingHasher;
+    private long pendingStart;
+    private long pendingLength;
+    // Chunk size when the chunk being sent was cut, the size may have changed while it was read ahead
+    private int pendingCutSize;
+
+    // Chunk being sent, kept for retries, and the read of the chunk after it
+    private PrefetchedContent current;
+    private int currentCutSize;
+    private Future<PrefetchedContent> prefetch;
+    private long prefetchStart;
+    private long prefetchLength;
+    private int prefetchCutSize;
+    private long lastReadWait;
+    private long totalReadWait;
+    private long totalReadTime;
+
+    /**
+     * @param attributes The attributes of the file when the session was started
+     * @param kind       How the session came about, which decides how the content is hashed
+     */
+    public OneDriveUploadSession(OneDriveItem parent, File file, BasicFileAttributes attributes, String uploadUrl,
+                                 String[] ranges, Kind kind) throws IOException {
         this.parent = parent;
+        this.hasher = kind != Kind.DRY_RUN ? new MultiHasher(EnumSet.allOf(MultiHasher.Algorithm.class)) : null;
+        this.restored = kind == Kind.RESTORED;
         this.file = file;
+        this.fileSize = attributes.size();
+        this.fileModified = attributes.lastModifiedTime().toMillis();
         this.uploadUrl = uploadUrl;
-        this.raf = new RandomAccessFile(file, "r");
-        setRanges(ranges);
-    }
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
 
-    public void setRanges(String[] stringRanges) {
+        try {
+            setRanges(ranges);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
 
+    public void setRanges(String[] stringRanges) throws IOException {
         this.ranges = new Range[stringRanges.length];
         for (int i = 0; i < stringRanges.length; i++) {
             long start = Long.parseLong(stringRanges[i].substring(0, stringRanges[i].indexOf('-')));
 
             String s = stringRanges[i].substring(stringRanges[i].indexOf('-') + 1);
 
-            long end = 0;
+            long end = -1;
             if (!s.isEmpty()) {
                 end = Long.parseLong(s);
             }
@@ -44,20 +120,250 @@ public class OneDriveUploadSession {
         if (ranges.length > 0) {
             lastUploaded = ranges[0].start - totalUploaded;
             totalUploaded = ranges[0].start;
+            hashAccepted();
         }
     }
 
-    public byte[] getChunk() throws IOException {
-        byte[] bytes = new byte[CHUNK_SIZE];
+    // Hash the content that the server has now accepted
+    private void hashAccepted() throws IOException {
+        MultiHasher sent = pendingHasher;
+        pendingHasher = null;
 
-        raf.seek(totalUploaded);
-        int read = raf.read(bytes);
+        if (hasher == null || totalUploaded == hashedLength) {
+            return;
+        }
 
-        if (read < CHUNK_SIZE) {
-            bytes = Arrays.copyOf(bytes, read);
+        if (sent != null && pendingStart == hashedLength && totalUploaded == pendingStart + pendingLength) {
+            hasher = sent;
+            hashedLength = totalUploaded;
+        } else if (sent != null && pendingStart <= hashedLength && totalUploaded > hashedLength
+            && totalUploaded <= pendingStart + pendingLength) {
+            // Only part of the chunk was accepted, read that part again
+            hasher.update(channel, hashedLength, totalUploaded - hashedLength);
+            hashedLength = totalUploaded;
+        } else if (restored && hashedLength == 0 && totalUploaded <= fileSize) {
+            // Accepted in an earlier run of a persisted session, read it again
+            hasher.update(channel, 0, totalUploaded);
+            hashedLength = totalUploaded;
+        } else {
+            hasher = null;
         }
+    }
+
+    /**
+     * @return The length of the next chunk to upload
+     */
+    public long getChunkLength() {
+        long chunkSize = Math.min(sizer.getChunkSize(), getMissingLength());
 
-        return bytes;
+        // Stick to a chunk that was already read, unless it no longer fits
+        if (current != null && current.getPosition() == totalUploaded && current.getLength() <= chunkSize) {
+            return current.getLength();
+        }
+
+        if (prefetch != null && prefetchStart == totalUploaded && prefetchLength <= chunkSize) {
+            return prefetchLength;
+        }
+
+        return chunkSize;
+    }
+
+    // Length of the first range the server expects, which starts at the total uploaded
+    private long getMissingLength() {
+        if (ranges != null && ranges.length > 0 && ranges[0].start == totalUploaded && ranges[0].end >= 0) {
+            return ranges[0].end - totalUploaded + 1;
+        }
+
+        return fileSize - totalUploaded;
+    }
+
+    /**
+     * @return Whether the last chunk handed out ends the file, so its success completes the upload
+     */
+    public boolean isFinalChunkPending() {
+        return pendingLength > 0 && pendingStart + pendingLength == fileSize;
+    }
+
+    /**
+     * @return The hashes of the whole file including the final chunk that was handed out, read from the file if the
+     * content sent was not hashed
+     */
+    public FileHashes getFinalChunkHashes() throws IOException {
+        if (pendingHasher != null && pendingStart == hashedLength) {
+            return pendingHasher.copy().getHashes();
+        }
+
+        MultiHasher content = new MultiHasher(EnumSet.allOf(MultiHasher.Algorithm.class));
+        content.update(channel, 0, fileSize);
+        return content.getHashes();
+    }
+
+    /**
+     * Record that the last chunk was accepted, to tune the size of the next chunks.
+     *
+     * @param time The time taken to send the chunk in milliseconds
+     */
+    public void chunkSucceeded(long time) {
+        sizer.succeeded(lastUploaded, pendingCutSize, time);
+    }
+
+    /**
+     * Record that the last chunk failed, to tune the size of the next chunks.
+     */
+    public void chunkFailed() {
+        sizer.failed();
+    }
+
+    /**
+     * @return The size of the next chunks in bytes
+     */
+    public int getChunkSize() {
+        return sizer.getChunkSize();
+    }
+
+    /**
+     * @return The content of the next chunk to upload, which starts reading the chunk after it
+     */
+    public HttpContent getChunkContent() {
+        restored = false;
+        pendingStart = totalUploaded;
+        pendingLength = getChunkLength();
+        lastReadWait = 0;
+
+        if (current == null || current.getPosition() != pendingStart || current.getLength() != pendingLength) {
+            releaseCurrent();
+            current = takePrefetched(pendingStart, pendingLength);
+        }
+
+        if (prefetch == null) {
+            startPrefetch(pendingStart + pendingLength);
+        }
+
+        HttpContent content = current != null ? current : new FileRegionContent(channel, pendingStart, pendingLength);
+        pendingCutSize = current != null ? currentCutSize : sizer.getChunkSize();
+
+        if (hasher == null) {
+            pendingHasher = null;
+            return content;
+        }
+
+        pendingHasher = hasher.copy();
+        return new HashingContent(content, pendingHasher);
+    }
+
+    // Wait for the chunk read ahead at the given position, any other read ahead is discarded
+    private PrefetchedContent takePrefetched(long start, long length) {
+        if (prefetch == null) {
+            return null;
+        }
+
+        if (prefetchStart != start || prefetchLength != length) {
+            if (prefetchStart != start + length) {
+                discardPrefetch();
+            }
+
+            return null;
+        }
+
+        Future<PrefetchedContent> read = prefetch;
+        prefetch = null;
+
+        long startTime = System.currentTimeMillis();
+
+        try {
+            PrefetchedContent content = read.get();
+            lastReadWait = System.currentTimeMillis() - startTime;
+            totalReadWait += lastReadWait;
+            totalReadTime += content.getReadTime();
+            currentCutSize = prefetchCutSize;
+            return content;
+        } catch (ExecutionException e) {
+            log.debug("Unable to read ahead chunk of {} - {}", file.getPath(), e.getCause().getMessage());
+            readAheadReserved.addAndGet(-prefetchLength);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            read.cancel(true);
+            readAheadReserved.addAndGet(-prefetchLength);
+            return null;
+        }
+    }
+
+    private void startPrefetch(long start) {
+        if (start >= fileSize) {
+            return;
+        }
+
+        int cutSize = sizer.getChunkSize();
+        long length = Math.min(cutSize, fileSize - start);
+
+        if (!reserveReadAhead(length)) {
+            return;
+        }
+
+        prefetchStart = start;
+        prefetchLength = length;
+        prefetchCutSize = cutSize;
+        prefetch = PREFETCH_EXECUTOR.submit(() -> PrefetchedContent.read(channel, start, length, BufferPool.DEFAULT));
+    }
+
+    private void discardPrefetch() {
+        Future<PrefetchedContent> read = prefetch;
+        prefetch = null;
+
+        try {
+            read.get().release();
+        } catch (ExecutionException e) {
+            // Nothing to release
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            read.cancel(true);
+        } finally {
+            readAheadReserved.addAndGet(-prefetchLength);
+        }
+    }
+
+    private void releaseCurrent() {
+        if (current != null) {
+            readAheadReserved.addAndGet(-current.getLength());
+            current.release();
+            current = null;
+        }
+    }
+
+    private static boolean reserveReadAhead(long length) {
+        while (true) {
+            long reserved = readAheadReserved.get();
+
+            if (reserved + length > ChunkSizer.READ_AHEAD_BUDGET) {
+                return false;
+            }
+
+            if (readAheadReserved.compareAndSet(reserved, reserved + length)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return The time in milliseconds spent waiting for the last chunk to be read before it could be sent
+     */
+    public long getLastReadWait() {
+        return lastReadWait;
+    }
+
+    /**
+     * @return The time in milliseconds spent waiting for chunks to be read before they could be sent
+     */
+    public long getTotalReadWait() {
+        return totalReadWait;
+    }
+
+    /**
+     * @return The time in milliseconds spent reading chunks ahead, mostly while earlier chunks were sent
+     */
+    public long getTotalReadTime() {
+        return totalReadTime;
     }
 
     public long getTotalUploaded() {
@@ -76,6 +382,31 @@ public class OneDriveUploadSession {
         return uploadUrl;
     }
 
+    /**
+     * @return The size of the file when the session was started
+     */
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @return The last modified time of the file in milliseconds when the session was started
+     */
+    public long getFileModified() {
+        return fileModified;
+    }
+
+    /**
+     * @return The time after which the service discards the session, or null if unknown
+     */
+    public Date getExpirationDateTime() {
+        return expirationDateTime;
+    }
+
+    public void setExpirationDateTime(Date expirationDateTime) {
+        this.expirationDateTime = expirationDateTime;
+    }
+
     public File getFile() {
         return file;
     }
@@ -84,16 +415,48 @@ public class OneDriveUploadSession {
         return item != null;
     }
 
-    public void setComplete(OneDriveItem item) {
+    public void setComplete(OneDriveItem item) throws IOException {
         this.item = item;
-        lastUploaded = file.length() - totalUploaded;
-        totalUploaded = file.length();
+        lastUploaded = fileSize - totalUploaded;
+        totalUploaded = fileSize;
+        hashAccepted();
+        close();
+    }
+
+    /**
+     * @return The hashes of the uploaded content, or null if they could not be computed while uploading
+     */
+    public FileHashes getHashes() {
+        return hasher != null && isComplete() ? hasher.getHashes() : null;
     }
 
     public OneDriveItem getItem() {
         return item;
     }
 
+    @Override
+    public void close() throws IOException {
+        releaseCurrent();
+
+        if (prefetch != null) {
+            discardPrefetch();
+        }
+
+        channel.close();
+    }
+
+    /**
+     * How a session came about.
+     */
+    public enum Kind {
+        // Created for this upload
+        NEW,
+        // Stored by an earlier run, the content the service already has is hashed again from the file
+        RESTORED,
+        // Nothing is sent, so nothing is hashed
+        DRY_RUN
+    }
+
     private static class Range {
         public long start;
         public long end;
@@ -45,6 +45,10 @@ class OneDriveUrl extends GenericUrl {
         return new OneDriveUrl(rootUrl + "/drive/items/" + id + "/children");
     }
 
+    public static OneDriveUrl child(String id, String name) {
+        return new OneDriveUrl(rootUrl + "/drive/items/" + id + ":/" + encode(name));
+    }
+
     public static OneDriveUrl createUploadSession(String id, String name) {
         return new OneDriveUrl(rootUrl + "/drive/items/" + id + ":/" + encode(name) + ":/upload.createSession");
     }
@@ -12,13 +12,18 @@ import com.wouterbreukink.onedrive.client.downloader.ResumableDownloaderProgress
 import com.wouterbreukink.onedrive.client.resources.Drive;
 import com.wouterbreukink.onedrive.client.resources.Item;
 import com.wouterbreukink.onedrive.client.resources.ItemSet;
+import com.wouterbreukink.onedrive.filesystem.FileHashes;
+import com.wouterbreukink.onedrive.filesystem.hash.MultiHasher;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 class ROOneDriveProvider extends AbstractOneDriveProvider {
     private static final Logger log = LoggerFactory.getLogger(ROOneDriveProvider.class);
@@ -131,7 +136,14 @@ class ROOneDriveProvider extends AbstractOneDriveProvider {
         }
     }
 
-    public OneDriveItem replaceFile(OneDriveItem parent, File file) throws IOException {
+    @Override
+    public OneDriveItem getItem(String id) throws IOException {
+        HttpRequest request = requestFactory.buildGetRequest(OneDriveUrl.item(id));
+        Item response = executeAndParseRequest(request, Item.class);
+        return OneDriveItem.FACTORY.create(response);
+    }
+
+    public OneDriveItem replaceFile(OneDriveItem parent, File file, MultiHasher hasher) throws IOException {
         if (!parent.isDirectory()) {
             throw new IllegalArgumentException("Parent is not a folder");
         }
@@ -139,7 +151,7 @@ class ROOneDriveProvider extends AbstractOneDriveProvider {
         return OneDriveItem.FACTORY.create(parent, file.getName(), file.isDirectory());
     }
 
-    public OneDriveItem uploadFile(OneDriveItem parent, File file) throws IOException {
+    public OneDriveItem uploadFile(OneDriveItem parent, File file, MultiHasher hasher) throws IOException {
         if (!parent.isDirectory()) {
             throw new IllegalArgumentException("Parent is not a folder");
         }
@@ -149,7 +161,8 @@ class ROOneDriveProvider extends AbstractOneDriveProvider {
 
     @Override
     public OneDriveUploadSession startUploadSession(OneDriveItem parent, File file) throws IOException {
-        return new OneDriveUploadSession(parent, file, null, new String[0]);
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        return new OneDriveUploadSession(parent, file, attributes, null, new String[0], OneDriveUploadSession.Kind.DRY_RUN);
     }
 
     @Override
@@ -157,6 +170,11 @@ class ROOneDriveProvider extends AbstractOneDriveProvider {
         session.setComplete(OneDriveItem.FACTORY.create(session.getParent(), session.getFile().getName(), session.getFile().isDirectory()));
     }
 
+    @Override
+    public void refreshUploadSession(OneDriveUploadSession session) throws IOException {
+        // Nothing has been sent
+    }
+
     public OneDriveItem updateFile(OneDriveItem item, Date createdDate, Date modifiedDate) throws IOException {
         // Do nothing, just return the unmodified item
         return item;
@@ -167,8 +185,14 @@ class ROOneDriveProvider extends AbstractOneDriveProvider {
         return OneDriveItem.FACTORY.create(parent, target.getName(), true);
     }
 
-    public void download(OneDriveItem item, File target, ResumableDownloaderProgressListener progressListener) throws IOException {
+    public FileHashes download(OneDriveItem item, File target, ResumableDownloaderProgressListener progressListener, Set<MultiHasher.Algorithm> algorithms) throws IOException {
+        // Do nothing
+        return null;
+    }
+
+    public FileHashes downloadRanges(OneDriveItem item, File target, int ranges, Set<MultiHasher.Algorithm> algorithms) throws IOException {
         // Do nothing
+        return null;
     }
 
     public void delete(OneDriveItem remoteFile) throws IOException {
@@ -4,6 +4,8 @@ import com.google.api.client.http.*;
 import com.google.api.client.http.json.JsonHttpContent;
 import com.google.api.client.util.Key;
 import com.wouterbreukink.onedrive.client.authoriser.AuthorisationProvider;
+import com.wouterbreukink.onedrive.client.downloader.ParallelDownloader;
+import com.wouterbreukink.onedrive.client.downloader.PartialDownload;
 import com.wouterbreukink.onedrive.client.downloader.ResumableDownloader;
 import com.wouterbreukink.onedrive.client.downloader.ResumableDownloaderProgressListener;
 import com.wouterbreukink.onedrive.client.facets.FileFacet;
@@ -12,29 +14,45 @@ import com.wouterbreukink.onedrive.client.facets.FolderFacet;
 import com.wouterbreukink.onedrive.client.resources.Item;
 import com.wouterbreukink.onedrive.client.resources.UploadSession;
 import com.wouterbreukink.onedrive.client.serialization.JsonDateSerializer;
+import com.wouterbreukink.onedrive.filesystem.FileHashes;
+import com.wouterbreukink.onedrive.filesystem.hash.MultiHasher;
+import com.wouterbreukink.onedrive.io.BandwidthLimiter;
+import com.wouterbreukink.onedrive.io.HashingContent;
+import com.wouterbreukink.onedrive.io.ThrottledContent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Date;
+import java.util.Set;
 
 import static com.wouterbreukink.onedrive.CommandLineOpts.getCommandLineOpts;
 
 class RWOneDriveProvider extends ROOneDriveProvider {
-    public RWOneDriveProvider(AuthorisationProvider authoriser) {
+    private static final Logger log = LoggerFactory.getLogger(RWOneDriveProvider.class);
+
+    // Store of upload sessions to continue in a later run, may be null
+    private final UploadSessionStore sessionStore;
+
+    public RWOneDriveProvider(AuthorisationProvider authoriser, UploadSessionStore sessionStore) {
         super(authoriser);
+        this.sessionStore = sessionStore;
     }
 
-    public OneDriveItem replaceFile(OneDriveItem parent, File file) throws IOException {
+    public OneDriveItem replaceFile(OneDriveItem parent, File file, MultiHasher hasher) throws IOException {
         if (!parent.isDirectory()) {
             throw new IllegalArgumentException("Parent is not a folder");
         }
 
         HttpRequest request = requestFactory.buildPutRequest(
             OneDriveUrl.putContent(parent.getId(), file.getName()),
-            new FileContent(null, file)
+            new ThrottledContent(new HashingContent(new FileContent(null, file), hasher), BandwidthLimiter.UPLOAD)
         );
 
         Item response = executeAndParseRequest(request, Item.class);
@@ -45,7 +63,7 @@ class RWOneDriveProvider extends ROOneDriveProvider {
         return updateFile(item, new Date(attr.creationTime().toMillis()), new Date(attr.lastModifiedTime().toMillis()));
     }
 
-    public OneDriveItem uploadFile(OneDriveItem parent, File file) throws IOException {
+    public OneDriveItem uploadFile(OneDriveItem parent, File file, MultiHasher hasher) throws IOException {
         if (!parent.isDirectory()) {
             throw new IllegalArgumentException("Parent is not a folder");
         }
@@ -70,12 +88,12 @@ class RWOneDriveProvider extends ROOneDriveProvider {
                     new HttpHeaders()
                         .set("Content-ID", "<content>")
                         .setAcceptEncoding(null),
-                    new FileContent(null, file)
+                    new HashingContent(new FileContent(null, file), hasher)
                 )
             );
 
         HttpRequest request = requestFactory.buildPostRequest(
-                OneDriveUrl.postMultiPart(parent.getId()), content);
+                OneDriveUrl.postMultiPart(parent.getId()), new ThrottledContent(content, BandwidthLimiter.UPLOAD));
 
         request.setLoggingEnabled(true);
 
@@ -84,6 +102,20 @@ class RWOneDriveProvider extends ROOneDriveProvider {
 
     @Override
     public OneDriveUploadSession startUploadSession(OneDriveItem parent, File file) throws IOException {
+        // Read once, a stored session is only valid for the file as it was when the session started
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+
+        if (sessionStore != null) {
+            UploadSessionStore.Stored stored = sessionStore.load(parent, file, attributes);
+
+            if (stored != null) {
+                OneDriveUploadSession session = continueUploadSession(parent, file, attributes, stored);
+
+                if (session != null) {
+                    return session;
+                }
+            }
+        }
 
         HttpRequest request = requestFactory.buildPostRequest(
             OneDriveUrl.createUploadSession(parent.getId(), file.getName()),
@@ -92,40 +124,151 @@ class RWOneDriveProvider extends ROOneDriveProvider {
 
         UploadSession session = executeAndParseRequest(request, UploadSession.class);
 
-        return new OneDriveUploadSession(parent, file, session.getUploadUrl(), session.getNextExpectedRanges());
+        OneDriveUploadSession uploadSession =
+            new OneDriveUploadSession(parent, file, attributes, session.getUploadUrl(), session.getNextExpectedRanges(),
+                OneDriveUploadSession.Kind.NEW);
+        uploadSession.setExpirationDateTime(parseExpiration(session));
+        saveUploadSession(uploadSession);
+
+        return uploadSession;
+    }
+
+    // Pick up a session stored by an earlier run, from the ranges the service still expects
+    private OneDriveUploadSession continueUploadSession(OneDriveItem parent, File file, BasicFileAttributes attributes,
+                                                        UploadSessionStore.Stored stored) {
+        UploadSession session;
+
+        try {
+            HttpRequest request = requestFactory.buildGetRequest(new GenericUrl(stored.getUploadUrl()));
+            session = executeAndParseRequest(request, UploadSession.class);
+        } catch (IOException e) {
+            log.debug("Unable to continue upload session of {} - {}", file.getPath(), e.getMessage());
+            sessionStore.discard(parent, file);
+            return null;
+        }
+
+        try {
+            OneDriveUploadSession uploadSession =
+                new OneDriveUploadSession(parent, file, attributes, stored.getUploadUrl(), session.getNextExpectedRanges(),
+                    OneDriveUploadSession.Kind.RESTORED);
+
+            Date expiration = parseExpiration(session);
+            uploadSession.setExpirationDateTime(expiration != null ? expiration : stored.getExpirationDateTime());
+
+            log.info(
+                "Continuing upload of {} from an earlier run at {}%",
+                file.getPath(),
+                uploadSession.getFileSize() > 0 ? uploadSession.getTotalUploaded() * 100 / uploadSession.getFileSize() : 0
+            );
+
+            return uploadSession;
+        } catch (IOException e) {
+            log.debug("Unable to continue upload session of {} - {}", file.getPath(), e.getMessage());
+            return null;
+        }
+    }
+
+    private static Date parseExpiration(UploadSession session) {
+        return session.getExpirationDateTime() != null
+            ? JsonDateSerializer.INSTANCE.deserialize(session.getExpirationDateTime())
+            : null;
+    }
+
+    // Apply the state reported by the service and remember it for a later run
+    private void updateUploadSession(OneDriveUploadSession session, UploadSession response) throws IOException {
+        session.setRanges(response.getNextExpectedRanges());
+
+        if (response.getExpirationDateTime() != null) {
+            session.setExpirationDateTime(parseExpiration(response));
+        }
+
+        saveUploadSession(session);
+    }
+
+    private void saveUploadSession(OneDriveUploadSession session) {
+        if (sessionStore == null) {
+            return;
+        }
+
+        try {
+            sessionStore.save(session);
+        } catch (IOException e) {
+            log.warn("Unable to store upload session of {} - {}", session.getFile().getPath(), e.getMessage());
+        }
     }
 
     @Override
     public void uploadChunk(OneDriveUploadSession session) throws IOException {
-        byte[] bytesToUpload = session.getChunk();
+        long chunkLength = session.getChunkLength();
         OneDriveItem item;
 
         HttpRequest request = requestFactory.buildPutRequest(
                 new GenericUrl(session.getUploadUrl()),
-                new ByteArrayContent(null, bytesToUpload));
+                new ThrottledContent(session.getChunkContent(), BandwidthLimiter.UPLOAD));
 
         request.getHeaders().setContentRange(
             String.format(
                 "bytes %d-%d/%d", session.getTotalUploaded(),
-                session.getTotalUploaded() + bytesToUpload.length - 1,
-                session.getFile().length()
+                session.getTotalUploaded() + chunkLength - 1,
+                session.getFileSize()
             )
         );
 
-        if (session.getTotalUploaded() + bytesToUpload.length < session.getFile().length()) {
+        if (session.getTotalUploaded() + chunkLength < session.getFileSize()) {
             UploadSession uploadsSession = executeAndParseRequest(request, UploadSession.class);
-            session.setRanges(uploadsSession.getNextExpectedRanges());
+            updateUploadSession(session, uploadsSession);
             return;
         } else {
             item = OneDriveItem.FACTORY.create(executeAndParseRequest(request, Item.class));
         }
 
+        completeUploadSession(session, item);
+    }
+
+    @Override
+    public void refreshUploadSession(OneDriveUploadSession session) throws IOException {
+        HttpRequest request = requestFactory.buildGetRequest(new GenericUrl(session.getUploadUrl()));
+
+        try {
+            UploadSession uploadSession = executeAndParseRequest(request, UploadSession.class);
+            updateUploadSession(session, uploadSession);
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() == 404 && sessionStore != null) {
+                sessionStore.discard(session.getParent(), session.getFile());
+            }
+
+            // The session is gone once the file has been created, the response to the final chunk may have been lost
+            if (e.getStatusCode() != 404 || !session.isFinalChunkPending()) {
+                throw new OneDriveAPIException(e.getStatusCode(), "Unable to read upload session", e);
+            }
+
+            HttpRequest itemRequest = requestFactory.buildGetRequest(
+                OneDriveUrl.child(session.getParent().getId(), session.getFile().getName()));
+            OneDriveItem item = OneDriveItem.FACTORY.create(executeAndParseRequest(itemRequest, Item.class));
+
+            // An item of the same size may be an earlier version, only accept the content that was sent
+            if (item.getSize() != session.getFileSize()
+                || !item.hasHashes()
+                || !FileHashes.from(item.getHashes()).matches(session.getFinalChunkHashes())) {
+                throw new OneDriveAPIException(e.getStatusCode(), "Upload session expired", e);
+            }
+
+            log.debug("Upload session of {} had already completed", session.getFile().getPath());
+            completeUploadSession(session, item);
+        }
+    }
+
+    private void completeUploadSession(OneDriveUploadSession session, OneDriveItem item) throws IOException {
         // If this is the final chunk then set the properties
         BasicFileAttributes attr = Files.readAttributes(session.getFile().toPath(), BasicFileAttributes.class);
         item = updateFile(item, new Date(attr.creationTime().toMillis()), new Date(attr.lastModifiedTime().toMillis()));
 
         // Upload session is now complete
         session.setComplete(item);
+
+        if (sessionStore != null) {
+            sessionStore.discard(session.getParent(), session.getFile());
+        }
     }
 
     public OneDriveItem updateFile(OneDriveItem item, Date createdDate, Date modifiedDate) throws IOException {
@@ -163,25 +306,103 @@ class RWOneDriveProvider extends ROOneDriveProvider {
         return item;
     }
 
-    public void download(OneDriveItem item, File target, ResumableDownloaderProgressListener progressListener) throws IOException {
-        FileOutputStream fos = null;
+    public FileHashes download(OneDriveItem item, File target, ResumableDownloaderProgressListener progressListener, Set<MultiHasher.Algorithm> algorithms) throws IOException {
+        FileChannel channel = null;
 
         try {
-            fos = new FileOutputStream(target);
+            MultiHasher hasher = new MultiHasher(algorithms);
+            long resumeFrom = resumePosition(item, target, hasher);
+
+            if (resumeFrom >= item.getSize()) {
+                // Everything was downloaded before
+                PartialDownload.discard(target);
+                return hasher.getHashes();
+            }
+
+            RandomAccessFile file = new RandomAccessFile(target, "rw");
+            channel = file.getChannel();
+
+            if (resumeFrom == 0) {
+                // Reserving the full size up front reduces fragmentation of large files
+                file.setLength(getCommandLineOpts().isPreallocate() ? item.getSize() : 0);
+            }
+
+            final FileChannel out = channel;
+
             ResumableDownloader downloader = new ResumableDownloader(HTTP_TRANSPORT, requestFactory.getInitializer());
-            downloader.setProgressListener(progressListener);
             downloader.setChunkSize(getCommandLineOpts().getSplitAfter() * 1024 * 1024);
-            
-            downloader.download(OneDriveUrl.content(item.getId()), fos);
+            downloader.setBytesDownloaded(resumeFrom);
+            downloader.setHasher(hasher);
+            downloader.setBandwidthLimiter(BandwidthLimiter.DOWNLOAD);
+            downloader.setProgressListener(d -> {
+                if (d.getDownloadState() == ResumableDownloader.DownloadState.MEDIA_IN_PROGRESS) {
+                    // Only record chunks once they are on disk
+                    out.force(false);
+                    new PartialDownload(item, d.getNumBytesDownloaded()).save(target);
+                }
+
+                if (progressListener != null) {
+                    progressListener.progressChanged(d);
+                }
+            });
+
+            downloader.download(OneDriveUrl.content(item.getId()), channel);
+
+            PartialDownload.discard(target);
+            return downloader.getHasher().getHashes();
         } catch (IOException e) {
             throw new OneDriveAPIException(0, "Unable to download file", e);
         } finally {
-            if (fos != null) {
-                fos.close();
+            if (channel != null) {
+                channel.close();
             }
         }
     }
 
+    /**
+     * Prepare to continue an earlier partial download of the same version of the item.
+     *
+     * @param hasher Hasher that is given the content already downloaded
+     * @return The position to continue from, 0 to start again
+     */
+    private long resumePosition(OneDriveItem item, File target, MultiHasher hasher) throws IOException {
+        PartialDownload partial = PartialDownload.load(target);
+
+        if (partial == null) {
+            return 0;
+        }
+
+        if (!partial.matches(item) || target.length() < partial.getBytes()) {
+            log.info("Discarding partial download of {}, the remote file has changed", item.getFullName());
+            PartialDownload.discard(target);
+            return 0;
+        }
+
+        try (FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Anything after the recorded position may not have been written completely
+            channel.truncate(partial.getBytes());
+            hasher.update(channel, 0, partial.getBytes());
+        }
+
+        log.info("Resuming download of {} after {} bytes", item.getFullName(), partial.getBytes());
+        return partial.getBytes();
+    }
+
+    public FileHashes downloadRanges(OneDriveItem item, File target, int ranges, Set<MultiHasher.Algorithm> algorithms) throws IOException {
+        try {
+            // The ranges cannot continue a sequential partial download
+            PartialDownload.discard(target);
+
+            GenericUrl url = OneDriveUrl.content(item.getId());
+            url.put("alt", "media");
+
+            return new ParallelDownloader(requestFactory, ranges, getCommandLineOpts().getTries())
+                .download(url, target, item.getSize(), algorithms);
+        } catch (IOException e) {
+            throw new OneDriveAPIException(0, "Unable to download file", e);
+        }
+    }
+
     public void delete(OneDriveItem remoteFile) throws IOException {
         HttpRequest request = requestFactory.buildDeleteRequest(OneDriveUrl.item(remoteFile.getId()));
         request.execute();
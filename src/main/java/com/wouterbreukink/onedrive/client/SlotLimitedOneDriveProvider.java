@@ -0,0 +1,105 @@
+package com.wouterbreukink.onedrive.client;
+
+import com.wouterbreukink.onedrive.ResourceSlots;
+import com.wouterbreukink.onedrive.client.downloader.ResumableDownloaderProgressListener;
+import com.wouterbreukink.onedrive.client.resources.Drive;
+import com.wouterbreukink.onedrive.filesystem.FileHashes;
+import com.wouterbreukink.onedrive.filesystem.hash.MultiHasher;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Set;
+
+/**
+ * Runs every call of the wrapped provider in a network slot.
+ */
+class SlotLimitedOneDriveProvider implements OneDriveProvider {
+    private final OneDriveProvider api;
+    private final ResourceSlots slots;
+
+    SlotLimitedOneDriveProvider(OneDriveProvider api, ResourceSlots slots) {
+        this.api = api;
+        this.slots = slots;
+    }
+
+    @Override
+    public Drive getDefaultDrive() throws IOException {
+        return slots.call(api::getDefaultDrive);
+    }
+
+    @Override
+    public OneDriveItem getRoot() throws IOException {
+        return slots.call(api::getRoot);
+    }
+
+    @Override
+    public OneDriveItem[] getChildren(OneDriveItem parent) throws IOException {
+        return slots.call(() -> api.getChildren(parent));
+    }
+
+    @Override
+    public OneDriveItem[] getFolderDelta(OneDriveItem target, String token) throws IOException {
+        return slots.call(() -> api.getFolderDelta(target, token));
+    }
+
+    @Override
+    public OneDriveItem getPath(String path) throws IOException {
+        return slots.call(() -> api.getPath(path));
+    }
+
+    @Override
+    public OneDriveItem getItem(String id) throws IOException {
+        return slots.call(() -> api.getItem(id));
+    }
+
+    @Override
+    public OneDriveItem replaceFile(OneDriveItem parent, File file, MultiHasher hasher) throws IOException {
+        return slots.call(() -> api.replaceFile(parent, file, hasher));
+    }
+
+    @Override
+    public OneDriveItem uploadFile(OneDriveItem parent, File file, MultiHasher hasher) throws IOException {
+        return slots.call(() -> api.uploadFile(parent, file, hasher));
+    }
+
+    @Override
+    public OneDriveUploadSession startUploadSession(OneDriveItem parent, File file) throws IOException {
+        return slots.call(() -> api.startUploadSession(parent, file));
+    }
+
+    @Override
+    public void uploadChunk(OneDriveUploadSession session) throws IOException {
+        slots.run(() -> api.uploadChunk(session));
+    }
+
+    @Override
+    public void refreshUploadSession(OneDriveUploadSession session) throws IOException {
+        slots.run(() -> api.refreshUploadSession(session));
+    }
+
+    @Override
+    public OneDriveItem updateFile(OneDriveItem item, Date createdDate, Date modifiedDate) throws IOException {
+        return slots.call(() -> api.updateFile(item, createdDate, modifiedDate));
+    }
+
+    @Override
+    public OneDriveItem createFolder(OneDriveItem parent, File target) throws IOException {
+        return slots.call(() -> api.createFolder(parent, target));
+    }
+
+    @Override
+    public FileHashes download(OneDriveItem item, File target, ResumableDownloaderProgressListener progressListener, Set<MultiHasher.Algorithm> algorithms) throws IOException {
+        return slots.call(() -> api.download(item, target, progressListener, algorithms));
+    }
+
+    @Override
+    public FileHashes downloadRanges(OneDriveItem item, File target, int ranges, Set<MultiHasher.Algorithm> algorithms) throws IOException {
+        return slots.call(() -> api.downloadRanges(item, target, ranges, algorithms));
+    }
+
+    @Override
+    public void delete(OneDriveItem remoteFile) throws IOException {
+        slots.run(() -> api.delete(remoteFile));
+    }
+}
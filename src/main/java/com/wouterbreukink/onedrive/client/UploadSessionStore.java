@@ -0,0 +1,166 @@
+package com.wouterbreukink.onedrive.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Date;
+import java.util.Properties;
+import java.util.UUID;
+
+/**
+ * Keeps upload sessions in a folder, so a multi-part upload interrupted by the end of a run can be continued in a
+ * later run. Each session is a properties file named after the local file and remote folder:
+ * <pre>
+ * uploadUrl=...
+ * expirationDateTime=...
+ * path=...
+ * size=...
+ * modified=...
+ * </pre>
+ * A session is only reused while it has not expired and the size and last modified time of the file are unchanged
+ * since the session was started. The upload URL is pre-authenticated, anyone who can read it can upload to the
+ * session, so the folder and records are only accessible to their owner where the file system supports it.
+ */
+public class UploadSessionStore {
+    private static final Logger log = LoggerFactory.getLogger(UploadSessionStore.class);
+
+    private static final String SUFFIX = ".session";
+    // Sessions expiring sooner than this are not worth continuing
+    private static final long EXPIRY_MARGIN = 60 * 1000;
+
+    private final Path folder;
+
+    public UploadSessionStore(Path folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * @param parent     The remote folder the file is uploaded to
+     * @param file       The local file
+     * @param attributes The current attributes of the local file
+     * @return A stored session that can be continued, or null if there is none
+     */
+    public Stored load(OneDriveItem parent, File file, BasicFileAttributes attributes) {
+        Path path = recordFile(parent, file);
+
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+
+            long expiration = Long.parseLong(properties.getProperty("expirationDateTime", "0"));
+
+            if (!file.getAbsolutePath().equals(properties.getProperty("path"))
+                || attributes.size() != Long.parseLong(properties.getProperty("size"))
+                || attributes.lastModifiedTime().toMillis() != Long.parseLong(properties.getProperty("modified"))) {
+                log.debug("Discarding upload session of {}, the file has changed", file.getPath());
+                discard(parent, file);
+                return null;
+            }
+
+            if (expiration != 0 && expiration < System.currentTimeMillis() + EXPIRY_MARGIN) {
+                log.debug("Discarding upload session of {}, the session has expired", file.getPath());
+                discard(parent, file);
+                return null;
+            }
+
+            return new Stored(properties.getProperty("uploadUrl"), expiration != 0 ? new Date(expiration) : null);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Ignoring unreadable upload session {} - {}", path, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Record the current state of a session, replacing the previous record in a single step.
+     */
+    public void save(OneDriveUploadSession session) throws IOException {
+        Path path = recordFile(session.getParent(), session.getFile());
+        Path tempPath = path.resolveSibling(path.getFileName() + ".new");
+
+        // The file as it was when the session started, it may have changed since
+        Properties properties = new Properties();
+        properties.setProperty("uploadUrl", session.getUploadUrl());
+        properties.setProperty("path", session.getFile().getAbsolutePath());
+        properties.setProperty("size", Long.toString(session.getFileSize()));
+        properties.setProperty("modified", Long.toString(session.getFileModified()));
+
+        if (session.getExpirationDateTime() != null) {
+            properties.setProperty("expirationDateTime", Long.toString(session.getExpirationDateTime().getTime()));
+        }
+
+        if (!Files.isDirectory(folder)) {
+            Files.createDirectories(folder, ownerOnly("rwx------"));
+        }
+
+        Files.deleteIfExists(tempPath);
+        Files.createFile(tempPath, ownerOnly("rw-------"));
+
+        try (Writer writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+        }
+
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Remove the record of a session, after which it is no longer continued.
+     */
+    public void discard(OneDriveItem parent, File file) {
+        Path path = recordFile(parent, file);
+
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            log.warn("Unable to remove upload session {} - {}", path, e.getMessage());
+        }
+    }
+
+    private FileAttribute<?>[] ownerOnly(String permissions) {
+        if (!folder.getFileSystem().supportedFileAttributeViews().contains("posix")) {
+            return new FileAttribute<?>[0];
+        }
+
+        return new FileAttribute<?>[]{PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString(permissions))};
+    }
+
+    private Path recordFile(OneDriveItem parent, File file) {
+        String key = parent.getId() + "\n" + file.getName() + "\n" + file.getAbsolutePath();
+        return folder.resolve(UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)) + SUFFIX);
+    }
+
+    /**
+     * A session read from the store.
+     */
+    public static class Stored {
+        private final String uploadUrl;
+        private final Date expirationDateTime;
+
+        private Stored(String uploadUrl, Date expirationDateTime) {
+            this.uploadUrl = uploadUrl;
+            this.expirationDateTime = expirationDateTime;
+        }
+
+        public String getUploadUrl() {
+            return uploadUrl;
+        }
+
+        public Date getExpirationDateTime() {
+            return expirationDateTime;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.wouterbreukink.onedrive.client.downloader;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.util.Preconditions;
+import com.google.api.client.util.Sleeper;
+import com.wouterbreukink.onedrive.filesystem.FileHashes;
+import com.wouterbreukink.onedrive.filesystem.hash.Crc32Combine;
+import com.wouterbreukink.onedrive.filesystem.hash.MultiHasher;
+import com.wouterbreukink.onedrive.io.BandwidthLimiter;
+import com.wouterbreukink.onedrive.io.BufferPool;
+import com.wouterbreukink.onedrive.retry.DecorrelatedJitterBackOff;
+import com.wouterbreukink.onedrive.retry.RetryAfter;
+import com.wouterbreukink.onedrive.retry.RetryPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Downloads a single file over several connections at once.
+ * <p>
+ * The file is split into byte ranges which are requested concurrently with Range requests, and each range is
+ * written at its own position in the target file. The progress of every range is tracked, so after a failure
+ * only the missing part of the incomplete ranges is requested again.
+ * <p>
+ * The CRC32 of each range is computed while it is written and the results are combined. Other hashes cannot be
+ * computed out of order and have to be computed from the file afterwards.
+ * <p>
+ * Ranges are copied through pooled direct buffers. Between attempts the downloader waits for the delay asked for by
+ * the server, or otherwise an exponential back-off with jitter.
+ */
+public class ParallelDownloader {
+    private static final Logger log = LoggerFactory.getLogger(ParallelDownloader.class);
+
+    private static final int PARTIAL_CONTENT = 206;
+    // Delays between attempts to fetch the missing ranges
+    private static final long RETRY_BASE_DELAY = 1000, RETRY_MAX_DELAY = 30000;
+
+    private static final ExecutorService RANGE_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "download-range");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final HttpRequestFactory requestFactory;
+    private final int rangeCount;
+    private final int tries;
+    private BufferPool bufferPool = BufferPool.DEFAULT;
+    private Sleeper sleeper = Sleeper.DEFAULT;
+
+    public ParallelDownloader(HttpRequestFactory requestFactory, int rangeCount, int tries) {
+        this.requestFactory = requestFactory;
+        this.rangeCount = rangeCount;
+        this.tries = tries;
+    }
+
+    /**
+     * Sets the pool of the buffers used to copy ranges to the file. Defaults to {@link BufferPool#DEFAULT}.
+     */
+    public ParallelDownloader setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = Preconditions.checkNotNull(bufferPool);
+        return this;
+    }
+
+    /**
+     * Sets the sleeper used to wait between attempts. Defaults to {@link Sleeper#DEFAULT}.
+     */
+    public ParallelDownloader setSleeper(Sleeper sleeper) {
+        this.sleeper = Preconditions.checkNotNull(sleeper);
+        return this;
+    }
+
+    /**
+     * Download the content at the given URL to a file.
+     *
+     * @param requestUrl The content URL
+     * @param target     The file to write, any existing content is replaced
+     * @param size       The size of the content
+     * @param algorithms The hashes that are needed
+     * @return The requested hashes, or null if they could not be computed while downloading
+     */
+    public FileHashes download(GenericUrl requestUrl, File target, long size, Set<MultiHasher.Algorithm> algorithms)
+        throws IOException {
+        boolean crcOnly = algorithms.equals(EnumSet.of(MultiHasher.Algorithm.CRC32));
+        List<Range> ranges = split(size, crcOnly);
+        DecorrelatedJitterBackOff backOff = new RetryPolicy(tries, RETRY_BASE_DELAY, RETRY_MAX_DELAY).newBackOff();
+        long retryAfter = -1;
+
+        try (FileChannel channel = FileChannel.open(target.toPath(),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            for (int attempt = 1; ; attempt++) {
+                List<Range> missing = new ArrayList<>();
+                for (Range range : ranges) {
+                    if (!range.isComplete()) {
+                        missing.add(range);
+                    }
+                }
+
+                if (missing.isEmpty()) {
+                    break;
+                }
+
+                if (attempt > tries) {
+                    throw new IOException(String.format(
+                        "Gave up on parallel download after %d tries, %d of %d ranges incomplete",
+                        tries, missing.size(), ranges.size()));
+                }
+
+                if (attempt > 1) {
+                    waitBeforeRetry(retryAfter >= 0 ? retryAfter : backOff.nextDelay());
+                }
+
+                long remaining = remaining(missing);
+                retryAfter = fetchAll(requestUrl, channel, missing);
+
+                // Ranges that moved forward are not failing repeatedly, the next wait starts short again
+                if (remaining(missing) < remaining) {
+                    backOff.reset();
+                }
+            }
+
+            channel.force(false);
+        }
+
+        if (!crcOnly) {
+            return null;
+        }
+
+        long crc = 0;
+        for (Range range : ranges) {
+            crc = Crc32Combine.combine(crc, range.crc.getValue(), range.end - range.start);
+        }
+
+        return FileHashes.crc32(crc);
+    }
+
+    private List<Range> split(long size, boolean hashed) {
+        List<Range> ranges = new ArrayList<>();
+        long rangeSize = (size + rangeCount - 1) / rangeCount;
+
+        for (long start = 0; start < size; start += rangeSize) {
+            ranges.add(new Range(start, Math.min(size, start + rangeSize), hashed));
+        }
+
+        return ranges;
+    }
+
+    private static long remaining(List<Range> ranges) {
+        long remaining = 0;
+        for (Range range : ranges) {
+            remaining += range.end - range.position;
+        }
+        return remaining;
+    }
+
+    private void waitBeforeRetry(long delay) throws IOException {
+        log.debug("Retrying incomplete ranges in {}ms", delay);
+
+        try {
+            sleeper.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading", e);
+        }
+    }
+
+    /**
+     * @return The longest delay asked for by the server in a failed response, or -1 if none asked for a delay
+     */
+    private long fetchAll(GenericUrl requestUrl, FileChannel channel, List<Range> ranges) throws IOException {
+        List<Future<?>> futures = new ArrayList<>();
+        long retryAfter = -1;
+
+        for (Range range : ranges) {
+            futures.add(RANGE_EXECUTOR.submit(() -> {
+                fetch(requestUrl, channel, range);
+                return null;
+            }));
+        }
+
+        try {
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    Range range = ranges.get(i);
+                    log.warn("Encountered '{}' while downloading range {}-{}, {} bytes missing",
+                        e.getCause().getMessage(), range.start, range.end - 1, range.end - range.position);
+
+                    if (e.getCause() instanceof HttpResponseException) {
+                        HttpResponseException cause = (HttpResponseException) e.getCause();
+                        retryAfter = Math.max(retryAfter, RetryAfter.getDelay(cause.getHeaders()));
+                    }
+                }
+            }
+
+            return retryAfter;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading", e);
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private void fetch(GenericUrl requestUrl, FileChannel channel, Range range) throws IOException {
+        HttpRequest request = requestFactory.buildGetRequest(requestUrl);
+        request.getHeaders().setRange(String.format("bytes=%d-%d", range.position, range.end - 1));
+
+        HttpResponse response = request.execute();
+
+        try {
+            if (response.getStatusCode() != PARTIAL_CONTENT) {
+                throw new IOException("Range requests are not supported, status " + response.getStatusCode());
+            }
+
+            ReadableByteChannel content = Channels.newChannel(response.getContent());
+            ByteBuffer buffer = bufferPool.acquire();
+
+            try {
+                while (range.position < range.end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), range.end - range.position));
+
+                    int read = content.read(buffer);
+                    if (read < 0) {
+                        throw new IOException("Connection closed before the range was complete");
+                    }
+
+                    BandwidthLimiter.DOWNLOAD.acquire(read);
+                    buffer.flip();
+
+                    if (range.crc != null) {
+                        range.crc.update(buffer.duplicate());
+                    }
+
+                    long position = range.position;
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+
+                    // Only advanced once the bytes are written, a retry continues from here
+                    range.position += read;
+                }
+            } finally {
+                bufferPool.release(buffer);
+            }
+        } finally {
+            response.disconnect();
+        }
+    }
+
+    private static class Range {
+        private final long start;
+        private final long end;
+        private final CRC32 crc;
+        private volatile long position;
+
+        private Range(long start, long end, boolean hashed) {
+            this.start = start;
+            this.end = end;
+            this.position = start;
+            this.crc = hashed ? new CRC32() : null;
+        }
+
+        private boolean isComplete() {
+            return position == end;
+        }
+    }
+}
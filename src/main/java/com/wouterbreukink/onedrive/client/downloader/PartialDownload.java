@@ -0,0 +1,145 @@
+package com.wouterbreukink.onedrive.client.downloader;
+
+import com.wouterbreukink.onedrive.client.OneDriveItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Record of a partially downloaded file, kept in a properties file next to it so an interrupted download can be
+ * continued later:
+ * <pre>
+ * id=...
+ * cTag=...
+ * eTag=...
+ * size=...
+ * bytes=...
+ * </pre>
+ * The download is only continued while the remote item still has the same id, tags and size.
+ */
+public class PartialDownload {
+    private static final Logger log = LoggerFactory.getLogger(PartialDownload.class);
+
+    public static final String SUFFIX = ".part";
+
+    private final String id;
+    private final String cTag;
+    private final String eTag;
+    private final long size;
+    private final long bytes;
+
+    public PartialDownload(OneDriveItem item, long bytes) {
+        this(item.getId(), item.getCTag(), item.getETag(), item.getSize(), bytes);
+    }
+
+    private PartialDownload(String id, String cTag, String eTag, long size, long bytes) {
+        this.id = id;
+        this.cTag = cTag;
+        this.eTag = eTag;
+        this.size = size;
+        this.bytes = bytes;
+    }
+
+    public static File recordFile(File target) {
+        return new File(target.getPath() + SUFFIX);
+    }
+
+    /**
+     * @param target The partially downloaded file
+     * @return The record of the partial download, or null if there is none or it cannot be read
+     */
+    public static PartialDownload load(File target) {
+        Path path = recordFile(target).toPath();
+
+        if (!Files.exists(path)) {
+            return null;
+        }
+
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+
+            return new PartialDownload(
+                properties.getProperty("id"),
+                properties.getProperty("cTag"),
+                properties.getProperty("eTag"),
+                Long.parseLong(properties.getProperty("size")),
+                Long.parseLong(properties.getProperty("bytes"))
+            );
+        } catch (IOException | RuntimeException e) {
+            log.warn("Ignoring unreadable partial download record {} - {}", path, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Remove the record, after which the partial file is no longer continued.
+     */
+    public static void discard(File target) {
+        File record = recordFile(target);
+
+        if (record.exists() && !record.delete()) {
+            log.warn("Unable to remove partial download record {}", record.getPath());
+        }
+    }
+
+    public static boolean exists(File target) {
+        return recordFile(target).exists();
+    }
+
+    /**
+     * Write the record, replacing the previous one in a single step.
+     */
+    public void save(File target) throws IOException {
+        Path path = recordFile(target).toPath();
+        Path tempPath = path.resolveSibling(path.getFileName() + ".new");
+
+        Properties properties = new Properties();
+        properties.setProperty("id", id);
+        properties.setProperty("size", Long.toString(size));
+        properties.setProperty("bytes", Long.toString(bytes));
+
+        if (cTag != null) {
+            properties.setProperty("cTag", cTag);
+        }
+
+        if (eTag != null) {
+            properties.setProperty("eTag", eTag);
+        }
+
+        try (Writer writer = Files.newBufferedWriter(tempPath, StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+        }
+
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return Whether the record was made for the current version of the remote item
+     */
+    public boolean matches(OneDriveItem item) {
+        if (id == null || !id.equals(item.getId()) || size != item.getSize()) {
+            return false;
+        }
+
+        // The cTag only changes with the content, prefer it over the eTag which also covers the metadata
+        if (cTag != null && item.getCTag() != null) {
+            return cTag.equals(item.getCTag());
+        }
+
+        return eTag != null && eTag.equals(item.getETag());
+    }
+
+    public long getBytes() {
+        return bytes;
+    }
+}
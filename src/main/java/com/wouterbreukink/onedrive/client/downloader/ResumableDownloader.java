@@ -17,9 +17,18 @@ package com.wouterbreukink.onedrive.client.downloader;
 import com.google.api.client.http.*;
 import com.google.api.client.util.IOUtils;
 import com.google.api.client.util.Preconditions;
+import com.wouterbreukink.onedrive.filesystem.hash.HashingOutputStream;
+import com.wouterbreukink.onedrive.filesystem.hash.MultiHasher;
+import com.wouterbreukink.onedrive.io.BandwidthLimiter;
+import com.wouterbreukink.onedrive.io.BufferPool;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 
 /**
  * Media HTTP Downloader, with support for both direct and resumable media downloads. Documentation
@@ -53,6 +62,11 @@ public final class ResumableDownloader {
      * request. Set to 32MB because that is the maximum App Engine request size.
      */
     public static final int MAXIMUM_CHUNK_SIZE = 32 * 0x100000;
+    /**
+     * Largest read from the connection between two bandwidth acquisitions when downloading to a
+     * channel, keeps the traffic smooth at low rates.
+     */
+    private static final int READ_SLICE_SIZE = 64 * 1024;
     /**
      * The request factory for connections to the server.
      */
@@ -98,6 +112,19 @@ public final class ResumableDownloader {
      * </p>
      */
     private long lastBytePos = -1;
+    /**
+     * Hasher for the content downloaded so far or {@code null} for none. Only holds the content of
+     * completed chunks, so it always matches {@link #bytesDownloaded}.
+     */
+    private MultiHasher hasher;
+    /**
+     * Limiter for downloads to a channel or {@code null} for none.
+     */
+    private BandwidthLimiter bandwidthLimiter;
+    /**
+     * Pool of the buffers used for downloads to a channel.
+     */
+    private BufferPool bufferPool = BufferPool.DEFAULT;
 
     /**
      * Construct the {@link ResumableDownloader}.
@@ -151,14 +178,38 @@ public final class ResumableDownloader {
      */
     public void download(GenericUrl requestUrl, HttpHeaders requestHeaders, OutputStream outputStream)
             throws IOException {
+        download(requestUrl, requestHeaders, (content, chunkHasher) ->
+                IOUtils.copy(content, hashing(outputStream, chunkHasher)));
+    }
+
+    /**
+     * Executes a direct media download or a resumable media download into a file channel.
+     * <p>
+     * <p>
+     * The content is read through pooled direct buffers and each chunk is written at its own
+     * position in the channel, so a resumed download writes after the bytes already downloaded
+     * regardless of the position of the channel. This method does not close the channel.
+     * </p>
+     *
+     * @param requestUrl request URL where the download requests will be sent
+     * @param channel    destination channel
+     */
+    public void download(GenericUrl requestUrl, FileChannel channel) throws IOException {
+        download(requestUrl, null, (content, chunkHasher) -> copy(content, channel, chunkHasher));
+    }
+
+    private void download(GenericUrl requestUrl, HttpHeaders requestHeaders, ContentWriter writer)
+            throws IOException {
         Preconditions.checkArgument(downloadState == DownloadState.NOT_STARTED);
         requestUrl.put("alt", "media");
 
         if (directDownloadEnabled) {
             updateStateAndNotifyListener(DownloadState.MEDIA_IN_PROGRESS);
+            MultiHasher chunkHasher = hasher != null ? hasher.copy() : null;
             HttpResponse response =
-                    executeCurrentRequest(lastBytePos, requestUrl, requestHeaders, outputStream);
+                    executeCurrentRequest(lastBytePos, requestUrl, requestHeaders, writer, chunkHasher);
             // All required bytes have been downloaded from the server.
+            hasher = chunkHasher;
             mediaContentLength = response.getHeaders().getContentLength();
             bytesDownloaded = mediaContentLength;
             updateStateAndNotifyListener(DownloadState.MEDIA_COMPLETE);
@@ -172,8 +223,11 @@ public final class ResumableDownloader {
                 // If last byte position has been specified use it iff it is smaller than the chunksize.
                 currentRequestLastBytePos = Math.min(lastBytePos, currentRequestLastBytePos);
             }
+            // Hash the chunk into a copy, which replaces the checkpoint once the chunk is complete
+            MultiHasher chunkHasher = hasher != null ? hasher.copy() : null;
             HttpResponse response = executeCurrentRequest(
-                    currentRequestLastBytePos, requestUrl, requestHeaders, outputStream);
+                    currentRequestLastBytePos, requestUrl, requestHeaders, writer, chunkHasher);
+            hasher = chunkHasher;
 
             String contentRange = response.getHeaders().getContentRange();
             long nextByteIndex = getNextByteIndex(contentRange);
@@ -191,17 +245,68 @@ public final class ResumableDownloader {
         }
     }
 
+    /**
+     * Copies the content of a response to the channel at the position of the current chunk.
+     */
+    private void copy(InputStream content, FileChannel channel, MultiHasher chunkHasher) throws IOException {
+        ReadableByteChannel source = Channels.newChannel(content);
+        ByteBuffer buffer = bufferPool.acquire();
+
+        try {
+            long position = bytesDownloaded;
+            boolean complete = false;
+
+            while (!complete) {
+                // Fill the buffer in slices, so the limiter holds back reading from the connection
+                buffer.clear();
+                while (buffer.hasRemaining()) {
+                    int limit = buffer.limit();
+                    buffer.limit(Math.min(limit, buffer.position() + READ_SLICE_SIZE));
+                    int read = source.read(buffer);
+                    buffer.limit(limit);
+
+                    if (read < 0) {
+                        complete = true;
+                        break;
+                    }
+
+                    if (bandwidthLimiter != null) {
+                        bandwidthLimiter.acquire(read);
+                    }
+                }
+
+                buffer.flip();
+
+                if (chunkHasher != null) {
+                    chunkHasher.update(buffer);
+                }
+
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+        } finally {
+            bufferPool.release(buffer);
+        }
+    }
+
+    private static OutputStream hashing(OutputStream outputStream, MultiHasher chunkHasher) {
+        return chunkHasher != null ? new HashingOutputStream(outputStream, chunkHasher) : outputStream;
+    }
+
     /**
      * Executes the current request.
      *
      * @param currentRequestLastBytePos last byte position for current request
      * @param requestUrl                request URL where the download requests will be sent
      * @param requestHeaders            request headers or {@code null} to ignore
-     * @param outputStream              destination output stream
+     * @param writer                    writes the content to the destination
+     * @param chunkHasher               hasher for the content of this request or {@code null} for none
      * @return HTTP response
      */
     private HttpResponse executeCurrentRequest(long currentRequestLastBytePos, GenericUrl requestUrl,
-                                               HttpHeaders requestHeaders, OutputStream outputStream) throws IOException {
+                                               HttpHeaders requestHeaders, ContentWriter writer,
+                                               MultiHasher chunkHasher) throws IOException {
         // prepare the GET request
         HttpRequest request = requestFactory.buildGetRequest(requestUrl);
         // add request headers
@@ -217,10 +322,10 @@ public final class ResumableDownloader {
             }
             request.getHeaders().setRange(rangeHeader.toString());
         }
-        // execute the request and copy into the output stream
+        // execute the request and copy into the destination
         HttpResponse response = request.execute();
         try {
-            IOUtils.copy(response.getContent(), outputStream);
+            writer.write(response.getContent(), chunkHasher);
         } finally {
             response.disconnect();
         }
@@ -340,6 +445,41 @@ public final class ResumableDownloader {
         return this;
     }
 
+    /**
+     * Returns the hasher holding the hashes of the content of all completed chunks or {@code null}
+     * for none.
+     */
+    public MultiHasher getHasher() {
+        return hasher;
+    }
+
+    /**
+     * Sets the hasher that the downloaded content is fed through or {@code null} for none. When
+     * resuming a download with {@link #setBytesDownloaded}, the hasher must already hold the content
+     * before that position.
+     */
+    public ResumableDownloader setHasher(MultiHasher hasher) {
+        this.hasher = hasher;
+        return this;
+    }
+
+    /**
+     * Sets the limiter that downloads to a channel are read no faster than or {@code null} for none.
+     */
+    public ResumableDownloader setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+        return this;
+    }
+
+    /**
+     * Sets the pool of the buffers used for downloads to a channel. Defaults to
+     * {@link BufferPool#DEFAULT}.
+     */
+    public ResumableDownloader setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = Preconditions.checkNotNull(bufferPool);
+        return this;
+    }
+
     /**
      * Returns the transport to use for requests.
      */
@@ -439,4 +579,11 @@ public final class ResumableDownloader {
          */
         MEDIA_COMPLETE
     }
-}
\ No newline at end of file
+
+    /**
+     * Writes the content of a response to the destination of the download.
+     */
+    private interface ContentWriter {
+        void write(InputStream content, MultiHasher chunkHasher) throws IOException;
+    }
+}
@@ -7,6 +7,8 @@ public class HashesFacet {
     private String sha1Hash;
     @Key
     private String crc32Hash;
+    @Key
+    private String quickXorHash;
 
     public String getSha1Hash() {
         return sha1Hash;
@@ -16,6 +18,10 @@ public class HashesFacet {
         return crc32Hash;
     }
 
+    public String getQuickXorHash() {
+        return quickXorHash;
+    }
+
     public boolean hasCrc32Hash() {
         return crc32Hash != null;
     }
@@ -24,6 +30,10 @@ public class HashesFacet {
         return sha1Hash != null;
     }
 
+    public boolean hasQuickXorHash() {
+        return quickXorHash != null;
+    }
+
     public long getCrc32() {
         String reversed = crc32Hash.substring(6, 8) + crc32Hash.substring(4, 6) + crc32Hash.substring(2, 4) + crc32Hash.substring(0, 2);
         return Long.decode("0x" + reversed);
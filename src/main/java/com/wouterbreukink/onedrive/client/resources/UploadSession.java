@@ -7,6 +7,8 @@ public class UploadSession {
     private String uploadUrl;
     @Key
     private String[] nextExpectedRanges;
+    @Key
+    private String expirationDateTime;
 
     public String getUploadUrl() {
         return uploadUrl;
@@ -15,4 +17,8 @@ public class UploadSession {
     public String[] getNextExpectedRanges() {
         return nextExpectedRanges;
     }
+
+    public String getExpirationDateTime() {
+        return expirationDateTime;
+    }
 }
@@ -0,0 +1,102 @@
+package com.wouterbreukink.onedrive.filesystem;
+
+import com.wouterbreukink.onedrive.client.facets.HashesFacet;
+import com.wouterbreukink.onedrive.filesystem.hash.MultiHasher;
+
+/**
+ * Hashes of the content of a local file, any of which may be unknown.
+ */
+public class FileHashes {
+    private final Long crc32;
+    private final String sha1Hash;
+    private final String quickXorHash;
+
+    public FileHashes(Long crc32, String sha1Hash, String quickXorHash) {
+        this.crc32 = crc32;
+        this.sha1Hash = sha1Hash;
+        this.quickXorHash = quickXorHash;
+    }
+
+    public static FileHashes crc32(long crc32) {
+        return new FileHashes(crc32, null, null);
+    }
+
+    public static FileHashes sha1(String sha1Hash) {
+        return new FileHashes(null, sha1Hash, null);
+    }
+
+    /**
+     * @return The hashes reported by the server, or null if there are none
+     */
+    public static FileHashes from(HashesFacet hashes) {
+        if (hashes == null) {
+            return null;
+        }
+
+        return new FileHashes(
+            hashes.hasCrc32Hash() ? hashes.getCrc32() : null,
+            hashes.getSha1Hash(),
+            hashes.getQuickXorHash()
+        );
+    }
+
+    public Long getCrc32() {
+        return crc32;
+    }
+
+    public String getSha1Hash() {
+        return sha1Hash;
+    }
+
+    public String getQuickXorHash() {
+        return quickXorHash;
+    }
+
+    public boolean has(MultiHasher.Algorithm algorithm) {
+        switch (algorithm) {
+            case CRC32:
+                return crc32 != null;
+            case SHA1:
+                return sha1Hash != null;
+            case QUICK_XOR:
+                return quickXorHash != null;
+            default:
+                throw new IllegalArgumentException("Unsupported algorithm " + algorithm);
+        }
+    }
+
+    /**
+     * @return Whether any hash known by both this and the other instance differs, meaning the content differs
+     */
+    public boolean conflictsWith(FileHashes other) {
+        return crc32 != null && other.crc32 != null && !crc32.equals(other.crc32)
+            || sha1Hash != null && other.sha1Hash != null && !sha1Hash.equalsIgnoreCase(other.sha1Hash)
+            || quickXorHash != null && other.quickXorHash != null && !quickXorHash.equals(other.quickXorHash);
+    }
+
+    /**
+     * @return Whether at least one hash is known by both this and the other instance and none of them differs
+     */
+    public boolean matches(FileHashes other) {
+        boolean shared = crc32 != null && other.crc32 != null
+            || sha1Hash != null && other.sha1Hash != null
+            || quickXorHash != null && other.quickXorHash != null;
+
+        return shared && !conflictsWith(other);
+    }
+
+    /**
+     * Combine with hashes of the same content, hashes known by this instance take precedence.
+     */
+    public FileHashes merge(FileHashes other) {
+        if (other == null) {
+            return this;
+        }
+
+        return new FileHashes(
+            crc32 != null ? crc32 : other.crc32,
+            sha1Hash != null ? sha1Hash : other.sha1Hash,
+            quickXorHash != null ? quickXorHash : other.quickXorHash
+        );
+    }
+}
@@ -0,0 +1,298 @@
+package com.wouterbreukink.onedrive.filesystem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.wouterbreukink.onedrive.io.RecordFields.escape;
+import static com.wouterbreukink.onedrive.io.RecordFields.seal;
+import static com.wouterbreukink.onedrive.io.RecordFields.unescape;
+import static com.wouterbreukink.onedrive.io.RecordFields.verify;
+
+/**
+ * Hash cache kept in a single index file, keyed by the path of each file relative to the synchronised folder.
+ * <p>
+ * The index is loaded into memory when opened and changes are appended to the file as they happen. Since it is
+ * only a cache nothing is synced to disk. Each record ends with a checksum, so a record torn by a crash is skipped
+ * on the next load, and a new line is started before appending to a file that ends in a torn record. The file is
+ * rewritten without superseded records when it is opened or closed and has grown to more than twice the number of
+ * files it describes.
+ */
+class FileIndexHashCache implements HashCache {
+    private static final Logger log = LoggerFactory.getLogger(FileIndexHashCache.class);
+
+    private final Path indexFile;
+    private final Path root;
+    // Sorted so that all files in a folder can be removed at once
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+    private Writer writer;
+    private int records;
+
+    FileIndexHashCache(Path indexFile, File root) throws IOException {
+        this.indexFile = indexFile;
+        this.root = root.toPath().toAbsolutePath();
+
+        load();
+
+        if (records > entries.size() * 2) {
+            compact();
+        }
+
+        writer = Files.newBufferedWriter(
+            indexFile,
+            StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.APPEND
+        );
+
+        if (endsInTornRecord()) {
+            writer.write('\n');
+        }
+    }
+
+    private boolean endsInTornRecord() throws IOException {
+        try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            if (channel.size() == 0) {
+                return false;
+            }
+
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            return last.get(0) != '\n';
+        }
+    }
+
+    private void load() throws IOException {
+        if (!Files.exists(indexFile)) {
+            return;
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                records++;
+                String record = verify(line);
+
+                if (record == null) {
+                    log.debug("Ignoring damaged hash index record '{}'", line);
+                    continue;
+                }
+
+                String[] fields = record.split("\t", -1);
+
+                try {
+                    if (fields[0].equals("P") && fields.length == 9) {
+                        entries.put(unescape(fields[1]), Entry.parse(fields));
+                    } else if (fields[0].equals("R") && fields.length == 2) {
+                        removeKey(unescape(fields[1]));
+                    } else {
+                        log.debug("Ignoring malformed hash index record '{}'", line);
+                    }
+                } catch (NumberFormatException e) {
+                    log.debug("Ignoring malformed hash index record '{}'", line);
+                }
+            }
+        }
+
+        log.debug("Loaded {} entries from hash index {}", entries.size(), indexFile);
+    }
+
+    private String key(File file) {
+        Path path = file.toPath().toAbsolutePath();
+        Path key = path.startsWith(root) ? root.relativize(path) : path;
+        return key.toString().replace(File.separatorChar, '/');
+    }
+
+    @Override
+    public synchronized FileHashes get(File file, BasicFileAttributes attributes) {
+        Entry entry = entries.get(key(file));
+        return entry != null && entry.matches(attributes) ? entry.hashes : null;
+    }
+
+    @Override
+    public synchronized void put(File file, BasicFileAttributes attributes, FileHashes hashes) {
+        String key = key(file);
+        Entry existing = entries.get(key);
+
+        if (existing != null && existing.matches(attributes)) {
+            hashes = hashes.merge(existing.hashes);
+        }
+
+        Entry entry = new Entry(attributes, hashes);
+        entries.put(key, entry);
+        append(entry.format(key));
+    }
+
+    @Override
+    public synchronized void move(File from, File to) {
+        String fromKey = key(from);
+        Entry entry = entries.get(fromKey);
+
+        if (entry != null) {
+            removeKey(fromKey);
+            append("R\t" + escape(fromKey));
+
+            String toKey = key(to);
+            entries.put(toKey, entry);
+            append(entry.format(toKey));
+        }
+    }
+
+    @Override
+    public synchronized void remove(File file) {
+        String key = key(file);
+        if (removeKey(key)) {
+            append("R\t" + escape(key));
+        }
+    }
+
+    private boolean removeKey(String key) {
+        boolean removed = entries.remove(key) != null;
+
+        // Anything inside a folder of that name, '0' is the character after '/'
+        Map<String, Entry> children = entries.subMap(key + "/", key + "0");
+        removed |= !children.isEmpty();
+        children.clear();
+
+        return removed;
+    }
+
+    private void append(String record) {
+        if (writer == null) {
+            return;
+        }
+
+        try {
+            writer.write(seal(record));
+            writer.write('\n');
+            records++;
+        } catch (IOException e) {
+            log.warn("Unable to write hash index {}, hashes will not be remembered - {}", indexFile, e.getMessage());
+            closeQuietly();
+        }
+    }
+
+    private void compact() throws IOException {
+        Path tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+
+        try (Writer tempWriter = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                tempWriter.write(seal(entry.getValue().format(entry.getKey())));
+                tempWriter.write('\n');
+            }
+        }
+
+        Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = entries.size();
+
+        log.debug("Compacted hash index {} to {} entries", indexFile, records);
+    }
+
+    private void closeQuietly() {
+        try {
+            writer.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+
+        writer = null;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer == null) {
+            return;
+        }
+
+        writer.close();
+        writer = null;
+
+        if (records > entries.size() * 2) {
+            compact();
+        }
+    }
+
+    private static class Entry {
+        private final long size;
+        private final long modified;
+        private final long created;
+        private final String fileKey;
+        private final FileHashes hashes;
+
+        private Entry(long size, long modified, long created, String fileKey, FileHashes hashes) {
+            this.size = size;
+            this.modified = modified;
+            this.created = created;
+            this.fileKey = fileKey;
+            this.hashes = hashes;
+        }
+
+        private Entry(BasicFileAttributes attributes, FileHashes hashes) {
+            this(
+                attributes.size(),
+                attributes.lastModifiedTime().toMillis(),
+                attributes.creationTime().toMillis(),
+                fileKey(attributes),
+                hashes
+            );
+        }
+
+        private static String fileKey(BasicFileAttributes attributes) {
+            return attributes.fileKey() != null ? attributes.fileKey().toString() : null;
+        }
+
+        private static Entry parse(String[] fields) {
+            String crc32 = unescape(fields[6]);
+
+            return new Entry(
+                Long.parseLong(fields[2]),
+                Long.parseLong(fields[3]),
+                Long.parseLong(fields[4]),
+                unescape(fields[5]),
+                new FileHashes(
+                    crc32 != null ? Long.valueOf(crc32) : null,
+                    unescape(fields[7]),
+                    unescape(fields[8])
+                )
+            );
+        }
+
+        private boolean matches(BasicFileAttributes attributes) {
+            String currentKey = fileKey(attributes);
+
+            return size == attributes.size()
+                && modified == attributes.lastModifiedTime().toMillis()
+                && (fileKey == null || currentKey == null || fileKey.equals(currentKey));
+        }
+
+        private String format(String key) {
+            return String.join(
+                "\t",
+                "P",
+                escape(key),
+                Long.toString(size),
+                Long.toString(modified),
+                Long.toString(created),
+                escape(fileKey),
+                escape(hashes.getCrc32() != null ? hashes.getCrc32().toString() : null),
+                escape(hashes.getSha1Hash()),
+                escape(hashes.getQuickXorHash())
+            );
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.wouterbreukink.onedrive.filesystem;
 
+import com.wouterbreukink.onedrive.ResourceSlots;
 import com.wouterbreukink.onedrive.client.facets.HashesFacet;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Date;
 
 public interface FileSystemProvider {
@@ -21,10 +23,23 @@ public interface FileSystemProvider {
 
     boolean verifySha1Hash(File file, String sha1Hash) throws IOException;
 
+    boolean verifyQuickXorHash(File file, String quickXorHash) throws IOException;
+
     FileMatch verifyMatch(File file, HashesFacet hashesFacet, long fileSize, Date created, Date lastModified) throws IOException;
 
     FileMatch verifyMatch(File file, Date created, Date lastModified) throws IOException;
 
+    /**
+     * Compare a file by size and timestamps only, using attributes that have already been read
+     *
+     * @param attributes   The attributes of the local file
+     * @param fileSize     The expected size
+     * @param created      The expected creation time
+     * @param lastModified The expected last modified time
+     * @return YES if size and timestamps match, NO otherwise
+     */
+    FileMatch verifyMatch(BasicFileAttributes attributes, long fileSize, Date created, Date lastModified);
+
     /**
      * Get the CRC32 Checksum for a file
      *
@@ -34,6 +49,26 @@ public interface FileSystemProvider {
      */
     long getChecksum(File file) throws IOException;
 
+    /**
+     * Read the attributes of a file, to be passed to {@link #storeHashes} after a transfer
+     *
+     * @param file The file to read the attributes of
+     * @return The attributes of the file
+     * @throws IOException
+     */
+    BasicFileAttributes readAttributes(File file) throws IOException;
+
+    /**
+     * Remember the hashes of a file that has just been uploaded or downloaded. Nothing is stored if the file has
+     * changed since the given attributes were read, as the hashes may then not match its content.
+     *
+     * @param file       The transferred file
+     * @param attributes The attributes of the file when its content was read or written
+     * @param hashes     The hashes of the transferred content
+     * @throws IOException
+     */
+    void storeHashes(File file, BasicFileAttributes attributes, FileHashes hashes) throws IOException;
+
     enum FileMatch {
         YES,
         CRC,
@@ -42,11 +77,23 @@ public interface FileSystemProvider {
 
     class FACTORY {
         public static FileSystemProvider readOnlyProvider() {
-            return new ROFileSystemProvider();
+            return readOnlyProvider(HashCache.FACTORY.none());
+        }
+
+        public static FileSystemProvider readOnlyProvider(HashCache hashCache) {
+            return new ROFileSystemProvider(hashCache);
         }
 
         public static FileSystemProvider readWriteProvider() {
-            return new RWFileSystemProvider();
+            return readWriteProvider(HashCache.FACTORY.none());
+        }
+
+        public static FileSystemProvider readWriteProvider(HashCache hashCache) {
+            return new RWFileSystemProvider(hashCache);
+        }
+
+        public static FileSystemProvider slotLimited(FileSystemProvider fileSystem, ResourceSlots slots) {
+            return slots.isLimited() ? new SlotLimitedFileSystemProvider(fileSystem, slots) : fileSystem;
         }
     }
 
@@ -0,0 +1,91 @@
+package com.wouterbreukink.onedrive.filesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Remembers the hashes of local files, so unchanged files do not have to be read again to compare them.
+ * <p>
+ * Hashes are only returned while the size, last modified time and file key (inode) of a file are the same as
+ * when they were recorded.
+ */
+public interface HashCache {
+    /**
+     * @param file       The file
+     * @param attributes The current attributes of the file
+     * @return The recorded hashes, or null if none are known for the current state of the file
+     */
+    FileHashes get(File file, BasicFileAttributes attributes);
+
+    /**
+     * Record hashes of a file, combined with any hashes already known for the same state of the file.
+     *
+     * @param file       The file
+     * @param attributes The attributes of the file read before it was hashed
+     * @param hashes     The hashes
+     */
+    void put(File file, BasicFileAttributes attributes, FileHashes hashes);
+
+    /**
+     * Move the recorded hashes of a file that has been renamed.
+     */
+    void move(File from, File to);
+
+    /**
+     * Forget the hashes of a file, or of all files in a folder.
+     */
+    void remove(File file);
+
+    void close() throws IOException;
+
+    /**
+     * @return Whether recorded hashes are kept beyond the current run
+     */
+    default boolean isPersistent() {
+        return true;
+    }
+
+    class FACTORY {
+        private static final HashCache NONE = new HashCache() {
+            @Override
+            public FileHashes get(File file, BasicFileAttributes attributes) {
+                return null;
+            }
+
+            @Override
+            public void put(File file, BasicFileAttributes attributes, FileHashes hashes) {
+            }
+
+            @Override
+            public void move(File from, File to) {
+            }
+
+            @Override
+            public void remove(File file) {
+            }
+
+            @Override
+            public void close() {
+            }
+
+            @Override
+            public boolean isPersistent() {
+                return false;
+            }
+        };
+
+        public static HashCache none() {
+            return NONE;
+        }
+
+        public static HashCache fileIndex(Path indexFile, File root) throws IOException {
+            return new FileIndexHashCache(indexFile, root);
+        }
+
+        public static HashCache extendedAttributes(boolean readOnly) {
+            return new XattrHashCache(readOnly);
+        }
+    }
+}
@@ -1,21 +1,26 @@
 package com.wouterbreukink.onedrive.filesystem;
 
 import com.wouterbreukink.onedrive.client.facets.HashesFacet;
-import utils.hash.HashUtil;
+import com.wouterbreukink.onedrive.filesystem.hash.MultiHasher;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
-import java.util.zip.CRC32;
-import java.util.zip.CheckedInputStream;
 
 import static com.wouterbreukink.onedrive.CommandLineOpts.getCommandLineOpts;
 
 class ROFileSystemProvider implements FileSystemProvider {
+    protected final HashCache hashCache;
+
+    ROFileSystemProvider(HashCache hashCache) {
+        this.hashCache = hashCache;
+    }
+
     public void delete(File file) throws IOException {
         // Do nothing
     }
@@ -52,6 +57,11 @@ class ROFileSystemProvider implements FileSystemProvider {
         return true;
     }
 
+    @Override
+    public boolean verifyQuickXorHash(File file, String quickXorHash) throws IOException {
+        return true;
+    }
+
     @Override
     public FileMatch verifyMatch(File file, HashesFacet hashesFacet, long fileSize, Date created, Date lastModified) throws IOException {
         // Round to nearest second
@@ -73,8 +83,15 @@ class ROFileSystemProvider implements FileSystemProvider {
             return FileMatch.YES;
         }
 
-        boolean hashMatch = (hashesFacet.hasCrc32Hash())? hashesFacet.getCrc32() == getChecksum(file) :
-            (hashesFacet.hasSha1Hash()) && hashesFacet.getSha1Hash().equals(getSha1Hash(file));
+        boolean hashMatch;
+        if (hashesFacet.hasCrc32Hash()) {
+            hashMatch = hashesFacet.getCrc32() == getChecksum(file);
+        } else if (hashesFacet.hasSha1Hash()) {
+            hashMatch = hashesFacet.getSha1Hash().equalsIgnoreCase(getSha1Hash(file));
+        } else {
+            // OneDrive for Business and SharePoint only report a QuickXorHash
+            hashMatch = hashesFacet.hasQuickXorHash() && hashesFacet.getQuickXorHash().equals(getQuickXorHash(file));
+        }
 
         // If the crc matches but the timestamps do not we won't upload the content again
         if (hashMatch && !(modifiedMatches && createdMatches)) {
@@ -108,31 +125,57 @@ class ROFileSystemProvider implements FileSystemProvider {
         }
     }
 
-    public long getChecksum(File file) throws IOException {
-        // Compute CRC32 checksum
-        CheckedInputStream cis = null;
-
-        try {
-            cis = new CheckedInputStream(new FileInputStream(file), new CRC32());
-            byte[] buf = new byte[1024];
+    @Override
+    public FileMatch verifyMatch(BasicFileAttributes attributes, long fileSize, Date created, Date lastModified) {
+        // Timestamps rounded to the nearest second
+        boolean sizeMatches = fileSize == attributes.size();
+        boolean createdMatches = created.getTime() / 1000 == attributes.creationTime().to(TimeUnit.SECONDS);
+        boolean modifiedMatches = lastModified.getTime() / 1000 == attributes.lastModifiedTime().to(TimeUnit.SECONDS);
 
-            //noinspection StatementWithEmptyBody
-            while (cis.read(buf) >= 0) {
-            }
+        return sizeMatches && createdMatches && modifiedMatches ? FileMatch.YES : FileMatch.NO;
+    }
 
-            return cis.getChecksum().getValue();
-        } finally {
-            if (cis != null) {
-                cis.close();
-            }
-        }
+    public long getChecksum(File file) throws IOException {
+        return getHashes(file, MultiHasher.Algorithm.CRC32).getCrc32();
     }
 
     public String getSha1Hash(File file) {
         try {
-            return HashUtil.getFileSha1Hash(file);
+            return getHashes(file, MultiHasher.Algorithm.SHA1).getSha1Hash();
         } catch (IOException e) {
             return "";
         }
     }
+
+    public String getQuickXorHash(File file) throws IOException {
+        return getHashes(file, MultiHasher.Algorithm.QUICK_XOR).getQuickXorHash();
+    }
+
+    private FileHashes getHashes(File file, MultiHasher.Algorithm algorithm) throws IOException {
+        BasicFileAttributes attr = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+
+        FileHashes cached = hashCache.get(file, attr);
+        if (cached != null && cached.has(algorithm)) {
+            return cached;
+        }
+
+        // When the hashes are remembered compute all of them, as the file is being read anyway
+        Set<MultiHasher.Algorithm> algorithms = hashCache.isPersistent()
+            ? EnumSet.allOf(MultiHasher.Algorithm.class)
+            : EnumSet.of(algorithm);
+
+        FileHashes hashes = MultiHasher.hash(file, algorithms);
+        hashCache.put(file, attr, hashes);
+        return hashes;
+    }
+
+    @Override
+    public BasicFileAttributes readAttributes(File file) throws IOException {
+        return Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+    }
+
+    @Override
+    public void storeHashes(File file, BasicFileAttributes attributes, FileHashes hashes) throws IOException {
+        // Nothing is transferred in a dry run
+    }
 }
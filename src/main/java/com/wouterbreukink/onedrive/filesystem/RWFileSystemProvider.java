@@ -1,5 +1,9 @@
 package com.wouterbreukink.onedrive.filesystem;
 
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import javax.naming.directory.BasicAttributes;
 import java.io.File;
 import java.io.IOException;
@@ -13,6 +17,12 @@ import java.nio.file.attribute.FileTime;
 import java.util.Date;
 
 class RWFileSystemProvider extends ROFileSystemProvider implements FileSystemProvider {
+    private static final Logger log = LoggerFactory.getLogger(RWFileSystemProvider.class);
+
+    RWFileSystemProvider(HashCache hashCache) {
+        super(hashCache);
+    }
+
     private static void removeRecursive(Path path) throws IOException {
         Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
             @Override
@@ -47,6 +57,7 @@ class RWFileSystemProvider extends ROFileSystemProvider implements FileSystemPro
     @Override
     public void delete(File file) throws IOException {
         removeRecursive(file.toPath());
+        hashCache.remove(file);
     }
 
     @Override
@@ -74,6 +85,8 @@ class RWFileSystemProvider extends ROFileSystemProvider implements FileSystemPro
         if (!replacement.renameTo(original)) {
             throw new IOException("Unable to replace local file" + original.getPath());
         }
+
+        hashCache.move(replacement, original);
     }
 
     @Override
@@ -88,7 +101,15 @@ class RWFileSystemProvider extends ROFileSystemProvider implements FileSystemPro
             lastModifiedTime = FileTime.fromMillis(lastModified.getTime());
 
         if (currentCreationTime.compareTo(createdTime) != 0 && currentModifiedTime.compareTo(lastModifiedTime) != 0) {
+            FileHashes hashes = hashCache.get(downloadFile, attributes);
+
             attributeView.setTimes(lastModifiedTime, lastModifiedTime, createdTime);
+
+            // The content has not changed, keep its hashes
+            if (hashes != null) {
+                hashCache.put(downloadFile, attributeView.readAttributes(), hashes);
+            }
+
             return true;
         } else {
             // nothing changed
@@ -103,6 +124,28 @@ class RWFileSystemProvider extends ROFileSystemProvider implements FileSystemPro
 
     @Override
     public boolean verifySha1Hash(File file, String sha1Hash) throws IOException {
-        return getSha1Hash(file).equals(sha1Hash);
+        return getSha1Hash(file).equalsIgnoreCase(sha1Hash);
+    }
+
+    @Override
+    public boolean verifyQuickXorHash(File file, String quickXorHash) throws IOException {
+        // Base64 is case sensitive
+        return getQuickXorHash(file).equals(quickXorHash);
+    }
+
+    @Override
+    public void storeHashes(File file, BasicFileAttributes attributes, FileHashes hashes) throws IOException {
+        if (hashes == null) {
+            return;
+        }
+
+        // The file may have been modified while it was transferred
+        BasicFileAttributes current = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        if (current.size() != attributes.size() || !current.lastModifiedTime().equals(attributes.lastModifiedTime())) {
+            log.debug("Not storing hashes of {}, it changed during the transfer", file.getPath());
+            return;
+        }
+
+        hashCache.put(file, attributes, hashes);
     }
 }
@@ -0,0 +1,94 @@
+package com.wouterbreukink.onedrive.filesystem;
+
+import com.wouterbreukink.onedrive.ResourceSlots;
+import com.wouterbreukink.onedrive.client.facets.HashesFacet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+
+/**
+ * Runs every call of the wrapped provider in a disk slot.
+ */
+class SlotLimitedFileSystemProvider implements FileSystemProvider {
+    private final FileSystemProvider fileSystem;
+    private final ResourceSlots slots;
+
+    SlotLimitedFileSystemProvider(FileSystemProvider fileSystem, ResourceSlots slots) {
+        this.fileSystem = fileSystem;
+        this.slots = slots;
+    }
+
+    @Override
+    public void delete(File file) throws IOException {
+        slots.run(() -> fileSystem.delete(file));
+    }
+
+    @Override
+    public File createFolder(File file, String name) throws IOException {
+        return slots.call(() -> fileSystem.createFolder(file, name));
+    }
+
+    @Override
+    public File createFile(File file, String name) throws IOException {
+        return slots.call(() -> fileSystem.createFile(file, name));
+    }
+
+    @Override
+    public void replaceFile(File original, File replacement) throws IOException {
+        slots.run(() -> fileSystem.replaceFile(original, replacement));
+    }
+
+    @Override
+    public boolean setAttributes(File downloadFile, Date created, Date lastModified) throws IOException {
+        return slots.call(() -> fileSystem.setAttributes(downloadFile, created, lastModified));
+    }
+
+    @Override
+    public boolean verifyCrc(File file, long crc) throws IOException {
+        return slots.call(() -> fileSystem.verifyCrc(file, crc));
+    }
+
+    @Override
+    public boolean verifySha1Hash(File file, String sha1Hash) throws IOException {
+        return slots.call(() -> fileSystem.verifySha1Hash(file, sha1Hash));
+    }
+
+    @Override
+    public boolean verifyQuickXorHash(File file, String quickXorHash) throws IOException {
+        return slots.call(() -> fileSystem.verifyQuickXorHash(file, quickXorHash));
+    }
+
+    @Override
+    public FileMatch verifyMatch(File file, HashesFacet hashesFacet, long fileSize, Date created, Date lastModified)
+        throws IOException {
+        return slots.call(() -> fileSystem.verifyMatch(file, hashesFacet, fileSize, created, lastModified));
+    }
+
+    @Override
+    public FileMatch verifyMatch(File file, Date created, Date lastModified) throws IOException {
+        return slots.call(() -> fileSystem.verifyMatch(file, created, lastModified));
+    }
+
+    @Override
+    public FileMatch verifyMatch(BasicFileAttributes attributes, long fileSize, Date created, Date lastModified) {
+        // Attributes have already been read, no disk access
+        return fileSystem.verifyMatch(attributes, fileSize, created, lastModified);
+    }
+
+    @Override
+    public long getChecksum(File file) throws IOException {
+        return slots.call(() -> fileSystem.getChecksum(file));
+    }
+
+    @Override
+    public BasicFileAttributes readAttributes(File file) throws IOException {
+        return slots.call(() -> fileSystem.readAttributes(file));
+    }
+
+    @Override
+    public void storeHashes(File file, BasicFileAttributes attributes, FileHashes hashes) throws IOException {
+        slots.run(() -> fileSystem.storeHashes(file, attributes, hashes));
+    }
+}
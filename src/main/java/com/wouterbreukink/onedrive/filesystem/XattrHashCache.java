@@ -0,0 +1,125 @@
+package com.wouterbreukink.onedrive.filesystem;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.nio.file.Files;
+
+import static com.wouterbreukink.onedrive.io.RecordFields.escape;
+import static com.wouterbreukink.onedrive.io.RecordFields.unescape;
+
+/**
+ * Hash cache stored in a user defined extended attribute of each file (user.onedrive.hashes on Linux).
+ * <p>
+ * The attribute holds the size and last modified time the hashes were computed for. Unlike an index keyed by path
+ * it stays with the file when it is renamed, or copied with its attributes on the same file system. On file systems
+ * without support for extended attributes nothing is cached.
+ */
+class XattrHashCache implements HashCache {
+    private static final Logger log = LoggerFactory.getLogger(XattrHashCache.class);
+
+    private static final String ATTRIBUTE = "onedrive.hashes";
+
+    private final boolean readOnly;
+    // Checked on first use, the synchronised folder is assumed to be on a single file system
+    private volatile Boolean supported;
+
+    /**
+     * @param readOnly Use the attributes already present, but do not write any
+     */
+    XattrHashCache(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    @Override
+    public FileHashes get(File file, BasicFileAttributes attributes) {
+        UserDefinedFileAttributeView view = view(file);
+        if (view == null) {
+            return null;
+        }
+
+        try {
+            if (!view.list().contains(ATTRIBUTE)) {
+                return null;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(view.size(ATTRIBUTE));
+            view.read(ATTRIBUTE, buffer);
+            buffer.flip();
+
+            String[] fields = StandardCharsets.UTF_8.decode(buffer).toString().split("\t", -1);
+            if (fields.length != 5
+                || Long.parseLong(fields[0]) != attributes.size()
+                || Long.parseLong(fields[1]) != attributes.lastModifiedTime().toMillis()) {
+                return null;
+            }
+
+            String crc32 = unescape(fields[2]);
+            return new FileHashes(crc32 != null ? Long.valueOf(crc32) : null, unescape(fields[3]), unescape(fields[4]));
+        } catch (IOException | NumberFormatException e) {
+            log.debug("Unable to read cached hashes of {} - {}", file.getPath(), e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void put(File file, BasicFileAttributes attributes, FileHashes hashes) {
+        UserDefinedFileAttributeView view = readOnly ? null : view(file);
+        if (view == null) {
+            return;
+        }
+
+        hashes = hashes.merge(get(file, attributes));
+
+        String value = String.join(
+            "\t",
+            Long.toString(attributes.size()),
+            Long.toString(attributes.lastModifiedTime().toMillis()),
+            escape(hashes.getCrc32() != null ? hashes.getCrc32().toString() : null),
+            escape(hashes.getSha1Hash()),
+            escape(hashes.getQuickXorHash())
+        );
+
+        try {
+            view.write(ATTRIBUTE, StandardCharsets.UTF_8.encode(value));
+        } catch (IOException e) {
+            log.debug("Unable to cache hashes of {} - {}", file.getPath(), e.getMessage());
+        }
+    }
+
+    private UserDefinedFileAttributeView view(File file) {
+        if (supported == null) {
+            try {
+                supported = Files.getFileStore(file.toPath()).supportsFileAttributeView(UserDefinedFileAttributeView.class);
+            } catch (IOException e) {
+                return null;
+            }
+
+            if (!supported) {
+                log.warn("Extended attributes are not supported for {}, hashes will not be cached", file.getPath());
+            }
+        }
+
+        return supported ? Files.getFileAttributeView(file.toPath(), UserDefinedFileAttributeView.class) : null;
+    }
+
+    @Override
+    public void move(File from, File to) {
+        // The attribute moves with the file
+    }
+
+    @Override
+    public void remove(File file) {
+        // The attribute is removed with the file
+    }
+
+    @Override
+    public void close() {
+    }
+}
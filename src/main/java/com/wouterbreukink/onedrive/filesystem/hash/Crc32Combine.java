@@ -0,0 +1,77 @@
+package com.wouterbreukink.onedrive.filesystem.hash;
+
+/**
+ * Combines the CRC32 checksums of two consecutive blocks of data into the checksum of the whole, without reading
+ * the data again. This is a port of crc32_combine from zlib.
+ */
+public final class Crc32Combine {
+    // Reversed CRC-32 polynomial
+    private static final long POLYNOMIAL = 0xEDB88320L;
+
+    private Crc32Combine() {
+    }
+
+    /**
+     * @param crc1    The checksum of the first block
+     * @param crc2    The checksum of the second block
+     * @param length2 The length of the second block in bytes
+     * @return The checksum of the first block followed by the second
+     */
+    public static long combine(long crc1, long crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+
+        long[] even = new long[32];
+        long[] odd = new long[32];
+
+        // Operator for one zero bit
+        odd[0] = POLYNOMIAL;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+
+        // Operators for two and four zero bits
+        square(even, odd);
+        square(odd, even);
+
+        // Apply length2 zero bytes to crc1, squaring the operator for each bit of the length
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            length2 >>= 1;
+
+            if (length2 == 0) {
+                break;
+            }
+
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            length2 >>= 1;
+        } while (length2 != 0);
+
+        return crc1 ^ crc2;
+    }
+
+    private static long times(long[] matrix, long vector) {
+        long sum = 0;
+        for (int i = 0; vector != 0; i++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+        }
+        return sum;
+    }
+
+    private static void square(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
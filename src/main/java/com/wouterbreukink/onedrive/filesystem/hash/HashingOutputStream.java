@@ -0,0 +1,29 @@
+package com.wouterbreukink.onedrive.filesystem.hash;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that adds everything written through it to a hasher.
+ */
+public class HashingOutputStream extends FilterOutputStream {
+    private final MultiHasher hasher;
+
+    public HashingOutputStream(OutputStream out, MultiHasher hasher) {
+        super(out);
+        this.hasher = hasher;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        hasher.update(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        hasher.update(b, off, len);
+    }
+}
@@ -0,0 +1,257 @@
+package com.wouterbreukink.onedrive.filesystem.hash;
+
+import com.wouterbreukink.onedrive.filesystem.FileHashes;
+import com.wouterbreukink.onedrive.io.BufferPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Computes any combination of the CRC32, SHA1 and QuickXorHash of a file in a single pass.
+ * <p>
+ * The file is read through pooled direct buffers, which are handed to each hash without copying them to the heap
+ * first. When only the CRC32 of a large file is needed, the file is split into segments that are hashed in
+ * parallel and the segment checksums are combined.
+ */
+public class MultiHasher {
+    public enum Algorithm {
+        CRC32, SHA1, QUICK_XOR
+    }
+
+    // Only the CRC32 of files at least this big is computed in parallel
+    private static final long PARALLEL_THRESHOLD = 256L * 1024 * 1024;
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private static volatile ExecutorService segmentExecutor;
+
+    private final CRC32 crc32;
+    private MessageDigest sha1;
+    private QuickXorHash quickXor;
+
+    // A CRC32 cannot be copied, copies continue from the checksum of the content so far
+    private long crcBase;
+    private long crcLength;
+
+    public MultiHasher(Set<Algorithm> algorithms) {
+        this.crc32 = algorithms.contains(Algorithm.CRC32) ? new CRC32() : null;
+        this.sha1 = algorithms.contains(Algorithm.SHA1) ? newSha1() : null;
+        this.quickXor = algorithms.contains(Algorithm.QUICK_XOR) ? new QuickXorHash() : null;
+    }
+
+    private MultiHasher(MultiHasher original) {
+        this.crc32 = original.crc32 != null ? new CRC32() : null;
+        this.crcBase = original.crc32 != null ? original.getCrc32() : 0;
+        this.sha1 = original.sha1 != null ? cloneDigest(original.sha1) : null;
+        this.quickXor = original.quickXor != null ? original.quickXor.copy() : null;
+    }
+
+    /**
+     * @return An independent hasher with the same state as this one, used to checkpoint the hashes of a stream
+     */
+    public MultiHasher copy() {
+        return new MultiHasher(this);
+    }
+
+    /**
+     * Hash the whole of a file.
+     *
+     * @param file       The file
+     * @param algorithms The hashes to compute
+     * @return The requested hashes, the others are unknown
+     */
+    public static FileHashes hash(File file, Set<Algorithm> algorithms) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (algorithms.equals(EnumSet.of(Algorithm.CRC32)) && size >= PARALLEL_THRESHOLD) {
+                return FileHashes.crc32(parallelCrc32(channel, size));
+            }
+
+            MultiHasher hasher = new MultiHasher(algorithms);
+            hasher.update(channel, 0, size);
+            return hasher.getHashes();
+        }
+    }
+
+    /**
+     * Return to the state of a copy made earlier, forgetting any content added since.
+     *
+     * @param checkpoint A copy of this hasher
+     */
+    public void restore(MultiHasher checkpoint) {
+        if (crc32 != null) {
+            crc32.reset();
+            crcBase = checkpoint.getCrc32();
+            crcLength = 0;
+        }
+
+        if (sha1 != null) {
+            sha1 = cloneDigest(checkpoint.sha1);
+        }
+
+        if (quickXor != null) {
+            quickXor = checkpoint.quickXor.copy();
+        }
+    }
+
+    /**
+     * Add the content of the buffer between its position and limit. The position of the buffer is not changed.
+     */
+    public void update(ByteBuffer buffer) {
+        if (crc32 != null) {
+            crcLength += buffer.remaining();
+            crc32.update(buffer.duplicate());
+        }
+
+        if (sha1 != null) {
+            sha1.update(buffer.duplicate());
+        }
+
+        if (quickXor != null) {
+            quickXor.update(buffer.duplicate());
+        }
+    }
+
+    public void update(byte[] bytes, int offset, int length) {
+        update(ByteBuffer.wrap(bytes, offset, length));
+    }
+
+    /**
+     * Add a region of a file, read with positional reads so the channel can be shared.
+     */
+    public void update(FileChannel channel, long position, long length) throws IOException {
+        ByteBuffer buffer = BufferPool.DEFAULT.acquire();
+
+        try {
+            long end = position + length;
+
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("File ended while hashing");
+                }
+
+                buffer.flip();
+                update(buffer);
+                position += read;
+            }
+        } finally {
+            BufferPool.DEFAULT.release(buffer);
+        }
+    }
+
+    /**
+     * @return The hashes of the content added so far. The hasher should not be used afterwards.
+     */
+    public FileHashes getHashes() {
+        return new FileHashes(
+            crc32 != null ? getCrc32() : null,
+            sha1 != null ? toHex(sha1.digest()) : null,
+            quickXor != null ? quickXor.digestBase64() : null
+        );
+    }
+
+    private static long parallelCrc32(FileChannel channel, long size) throws IOException {
+        List<Future<Long>> segments = new ArrayList<>();
+
+        for (long position = 0; position < size; position += SEGMENT_SIZE) {
+            long start = position;
+            long length = Math.min(SEGMENT_SIZE, size - position);
+
+            segments.add(getSegmentExecutor().submit(() -> {
+                MultiHasher hasher = new MultiHasher(EnumSet.of(Algorithm.CRC32));
+                hasher.update(channel, start, length);
+                return hasher.getCrc32();
+            }));
+        }
+
+        long crc = 0;
+        long remaining = size;
+
+        try {
+            for (Future<Long> segment : segments) {
+                long length = Math.min(SEGMENT_SIZE, remaining);
+                crc = Crc32Combine.combine(crc, segment.get(), length);
+                remaining -= length;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } finally {
+            for (Future<Long> segment : segments) {
+                segment.cancel(true);
+            }
+        }
+
+        return crc;
+    }
+
+    private long getCrc32() {
+        return Crc32Combine.combine(crcBase, crc32.getValue(), crcLength);
+    }
+
+    private static ExecutorService getSegmentExecutor() {
+        if (segmentExecutor == null) {
+            synchronized (MultiHasher.class) {
+                if (segmentExecutor == null) {
+                    segmentExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+                        Thread thread = new Thread(r, "hash-segment");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+            }
+        }
+
+        return segmentExecutor;
+    }
+
+    private static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+    }
+
+    private static MessageDigest cloneDigest(MessageDigest digest) {
+        try {
+            return (MessageDigest) digest.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("Unable to copy " + digest.getAlgorithm() + " state", e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+}
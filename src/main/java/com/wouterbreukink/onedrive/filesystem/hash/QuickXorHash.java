@@ -0,0 +1,97 @@
+package com.wouterbreukink.onedrive.filesystem.hash;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ * The QuickXorHash used by OneDrive for Business and SharePoint.
+ * <p>
+ * Each byte is XORed into a 160 bit register at a position that moves 11 bits further for every byte, wrapping
+ * around at the end. The length of the content is finally XORed into the last 64 bits. The result is reported as
+ * base64.
+ */
+public class QuickXorHash {
+    private static final int WIDTH_IN_BITS = 160;
+    private static final int SHIFT = 11;
+    private static final int BITS_IN_LAST_CELL = 32;
+
+    private final long[] data = new long[(WIDTH_IN_BITS - 1) / 64 + 1];
+    private final byte[] scratch = new byte[64 * 1024];
+    private long lengthSoFar;
+    private int shiftSoFar;
+
+    /**
+     * @return An independent hash with the same state as this one
+     */
+    public QuickXorHash copy() {
+        QuickXorHash copy = new QuickXorHash();
+        System.arraycopy(data, 0, copy.data, 0, data.length);
+        copy.lengthSoFar = lengthSoFar;
+        copy.shiftSoFar = shiftSoFar;
+        return copy;
+    }
+
+    public void update(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            int length = Math.min(buffer.remaining(), scratch.length);
+            buffer.get(scratch, 0, length);
+            update(scratch, 0, length);
+        }
+    }
+
+    public void update(byte[] bytes, int offset, int length) {
+        int vectorArrayIndex = shiftSoFar / 64;
+        int vectorOffset = shiftSoFar % 64;
+        int iterations = Math.min(length, WIDTH_IN_BITS);
+
+        // Bytes that are a multiple of 160 apart land on the same bit position, XOR them together first
+        for (int i = 0; i < iterations; i++) {
+            boolean isLastCell = vectorArrayIndex == data.length - 1;
+            int bitsInVectorCell = isLastCell ? BITS_IN_LAST_CELL : 64;
+
+            int xored = 0;
+            for (int j = offset + i; j < offset + length; j += WIDTH_IN_BITS) {
+                xored ^= bytes[j] & 0xFF;
+            }
+
+            if (vectorOffset <= bitsInVectorCell - 8) {
+                data[vectorArrayIndex] ^= (long) xored << vectorOffset;
+            } else {
+                // The byte straddles two cells
+                int nextIndex = isLastCell ? 0 : vectorArrayIndex + 1;
+                data[vectorArrayIndex] ^= (long) xored << vectorOffset;
+                data[nextIndex] ^= (long) xored >>> (bitsInVectorCell - vectorOffset);
+            }
+
+            vectorOffset += SHIFT;
+            while (vectorOffset >= bitsInVectorCell) {
+                vectorArrayIndex = isLastCell ? 0 : vectorArrayIndex + 1;
+                vectorOffset -= bitsInVectorCell;
+                isLastCell = vectorArrayIndex == data.length - 1;
+                bitsInVectorCell = isLastCell ? BITS_IN_LAST_CELL : 64;
+            }
+        }
+
+        shiftSoFar = (int) ((shiftSoFar + (long) SHIFT * (length % WIDTH_IN_BITS)) % WIDTH_IN_BITS);
+        lengthSoFar += length;
+    }
+
+    public byte[] digest() {
+        byte[] result = new byte[(WIDTH_IN_BITS - 1) / 8 + 1];
+
+        // Cells are stored little endian, the last cell only contributes its low 32 bits
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) (data[i / 8] >>> ((i % 8) * 8));
+        }
+
+        for (int i = 0; i < 8; i++) {
+            result[WIDTH_IN_BITS / 8 - 8 + i] ^= (byte) (lengthSoFar >>> (i * 8));
+        }
+
+        return result;
+    }
+
+    public String digestBase64() {
+        return Base64.getEncoder().encodeToString(digest());
+    }
+}
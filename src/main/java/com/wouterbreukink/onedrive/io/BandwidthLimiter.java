@@ -0,0 +1,89 @@
+package com.wouterbreukink.onedrive.io;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the number of bytes per second shared by all transfers in one direction.
+ * <p>
+ * The bucket holds at most a tenth of a second worth of bytes, so an idle link cannot build up a large burst.
+ * Callers that take more than is available go into debt and wait until it is paid off, which spreads concurrent
+ * transfers evenly over time. The rate may be changed at any time.
+ */
+public class BandwidthLimiter {
+    // Shared limiters for all uploads and all downloads
+    public static final BandwidthLimiter UPLOAD = new BandwidthLimiter("upload");
+    public static final BandwidthLimiter DOWNLOAD = new BandwidthLimiter("download");
+
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final String name;
+    private long rate;
+    private double available;
+    private long lastRefill = System.nanoTime();
+
+    public BandwidthLimiter(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized long getRate() {
+        return rate;
+    }
+
+    /**
+     * @param bytesPerSecond The maximum rate, 0 or less for no limit
+     */
+    public synchronized void setRate(long bytesPerSecond) {
+        refill();
+        rate = Math.max(0, bytesPerSecond);
+        available = Math.min(available, maxBurst());
+    }
+
+    public synchronized boolean isLimited() {
+        return rate > 0;
+    }
+
+    /**
+     * Take the given number of bytes from the bucket, waiting until the rate allows them to be transferred.
+     *
+     * @param bytes The number of bytes about to be transferred
+     * @throws InterruptedIOException if the thread is interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        long waitNanos;
+
+        synchronized (this) {
+            if (rate <= 0) {
+                return;
+            }
+
+            refill();
+            available -= bytes;
+            waitNanos = available < 0 ? (long) (-available * NANOS_PER_SECOND / rate) : 0;
+        }
+
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for " + name + " bandwidth");
+            }
+        }
+    }
+
+    // Must be called holding the lock
+    private void refill() {
+        long now = System.nanoTime();
+        available = Math.min(maxBurst(), available + (double) (now - lastRefill) * rate / NANOS_PER_SECOND);
+        lastRefill = now;
+    }
+
+    private double maxBurst() {
+        return rate / 10d;
+    }
+}
@@ -0,0 +1,94 @@
+package com.wouterbreukink.onedrive.io;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+/**
+ * Watches a properties file holding the bandwidth limits in KB/s, so they can be changed while the client runs:
+ * <pre>
+ * up=512
+ * down=2048
+ * </pre>
+ * A missing or zero value removes the limit. The file is checked for changes every few seconds.
+ */
+public class BandwidthLimitsFile {
+    private static final Logger log = LoggerFactory.getLogger(BandwidthLimitsFile.class);
+
+    private static final long POLL_INTERVAL = 5000;
+
+    private final Path path;
+    private long lastModified = -1;
+
+    public BandwidthLimitsFile(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Apply the limits in the file and start watching it for changes.
+     */
+    public void watch() {
+        reload();
+
+        Thread watcher = new Thread(() -> {
+            try {
+                //noinspection InfiniteLoopStatement
+                while (true) {
+                    Thread.sleep(POLL_INTERVAL);
+                    reload();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "bandwidth-limits");
+
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private void reload() {
+        try {
+            if (!Files.exists(path)) {
+                return;
+            }
+
+            long modified = Files.getLastModifiedTime(path).toMillis();
+            if (modified == lastModified) {
+                return;
+            }
+
+            lastModified = modified;
+
+            Properties limits = new Properties();
+            try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+                limits.load(reader);
+            }
+
+            apply(BandwidthLimiter.UPLOAD, limits.getProperty("up"));
+            apply(BandwidthLimiter.DOWNLOAD, limits.getProperty("down"));
+        } catch (IOException e) {
+            log.warn("Unable to read bandwidth limits from {} - {}", path, e.getMessage());
+        }
+    }
+
+    private void apply(BandwidthLimiter limiter, String value) {
+        long rate;
+        try {
+            rate = value != null ? Long.parseLong(value.trim()) * 1024 : 0;
+        } catch (NumberFormatException e) {
+            log.warn("Ignoring invalid {} limit '{}' in {}", limiter.getName(), value, path);
+            return;
+        }
+
+        if (rate != limiter.getRate()) {
+            limiter.setRate(rate);
+            log.info("Limiting {} bandwidth to {}", limiter.getName(), rate > 0 ? rate / 1024 + "KB/s" : "unlimited");
+        }
+    }
+}
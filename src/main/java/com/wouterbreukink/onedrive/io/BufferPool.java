@@ -0,0 +1,76 @@
+package com.wouterbreukink.onedrive.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of direct buffers of a fixed size, so large I/O buffers are not allocated for every file.
+ * <p>
+ * Direct buffers are expensive to allocate and are only freed by the garbage collector, so released buffers are
+ * kept for reuse up to a maximum number.
+ */
+public class BufferPool {
+    // Shared pool for file I/O, large enough for the read ahead of uploads next to hashing and downloads
+    public static final BufferPool DEFAULT = new BufferPool(1024 * 1024, 96);
+
+    private final int bufferSize;
+    private final int maxRetained;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger retained = new AtomicInteger();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+
+    public BufferPool(int bufferSize, int maxRetained) {
+        this.bufferSize = bufferSize;
+        this.maxRetained = maxRetained;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return A cleared buffer, which should be given back with {@link #release}
+     */
+    public ByteBuffer acquire() {
+        acquired.incrementAndGet();
+        ByteBuffer buffer = buffers.poll();
+
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+
+        retained.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * @return The number of times a buffer was handed out
+     */
+    public long getAcquired() {
+        return acquired.get();
+    }
+
+    /**
+     * @return The number of buffers that had to be allocated
+     */
+    public long getAllocated() {
+        return allocated.get();
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || !buffer.isDirect()) {
+            return;
+        }
+
+        if (retained.incrementAndGet() <= maxRetained) {
+            buffers.offer(buffer);
+        } else {
+            retained.decrementAndGet();
+        }
+    }
+}
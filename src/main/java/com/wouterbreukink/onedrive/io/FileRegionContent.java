@@ -0,0 +1,58 @@
+package com.wouterbreukink.onedrive.io;
+
+import com.google.api.client.http.HttpContent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Request content taken straight from a region of a file channel, without copying the region to the heap first.
+ * The position of the channel is not used, so the channel can be shared.
+ */
+public class FileRegionContent implements HttpContent {
+    private final FileChannel channel;
+    private final long position;
+    private final long length;
+
+    public FileRegionContent(FileChannel channel, long position, long length) {
+        this.channel = channel;
+        this.position = position;
+        this.length = length;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public String getType() {
+        return null;
+    }
+
+    @Override
+    public boolean retrySupported() {
+        return true;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+        long written = 0;
+
+        while (written < length) {
+            long transferred = channel.transferTo(position + written, length - written, target);
+
+            if (transferred <= 0) {
+                throw new IOException("File ended before the region was sent");
+            }
+
+            written += transferred;
+        }
+
+        out.flush();
+    }
+}
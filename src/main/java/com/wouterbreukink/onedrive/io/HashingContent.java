@@ -0,0 +1,47 @@
+package com.wouterbreukink.onedrive.io;
+
+import com.google.api.client.http.HttpContent;
+import com.wouterbreukink.onedrive.filesystem.hash.HashingOutputStream;
+import com.wouterbreukink.onedrive.filesystem.hash.MultiHasher;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Request content that is hashed while it is sent. The hasher returns to its original state whenever the content
+ * is written, so it only includes the content of the last attempt.
+ */
+public class HashingContent implements HttpContent {
+    private final HttpContent content;
+    private final MultiHasher hasher;
+    private final MultiHasher checkpoint;
+
+    public HashingContent(HttpContent content, MultiHasher hasher) {
+        this.content = content;
+        this.hasher = hasher;
+        this.checkpoint = hasher.copy();
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        return content.getLength();
+    }
+
+    @Override
+    public String getType() {
+        return content.getType();
+    }
+
+    @Override
+    public boolean retrySupported() {
+        return content.retrySupported();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        hasher.restore(checkpoint);
+        HashingOutputStream hashing = new HashingOutputStream(out, hasher);
+        content.writeTo(hashing);
+        hashing.flush();
+    }
+}
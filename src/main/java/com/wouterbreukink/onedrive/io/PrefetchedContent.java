@@ -0,0 +1,112 @@
+package com.wouterbreukink.onedrive.io;
+
+import com.google.api.client.http.HttpContent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Request content read from a region of a file into pooled buffers before it is sent, so the read can overlap with
+ * sending earlier content. The buffers must be given back with {@link #release()} once the content is no longer
+ * needed.
+ */
+public class PrefetchedContent implements HttpContent {
+    private final BufferPool pool;
+    private final List<ByteBuffer> buffers;
+    private final long position;
+    private final long length;
+    private final long readTime;
+
+    private PrefetchedContent(BufferPool pool, List<ByteBuffer> buffers, long position, long length, long readTime) {
+        this.pool = pool;
+        this.buffers = buffers;
+        this.position = position;
+        this.length = length;
+        this.readTime = readTime;
+    }
+
+    /**
+     * Read a region of a file. The position of the channel is not used, so the channel can be shared.
+     */
+    public static PrefetchedContent read(FileChannel channel, long position, long length, BufferPool pool)
+        throws IOException {
+        long startTime = System.currentTimeMillis();
+        List<ByteBuffer> buffers = new ArrayList<>();
+
+        try {
+            long read = 0;
+
+            while (read < length) {
+                ByteBuffer buffer = pool.acquire();
+                buffers.add(buffer);
+                buffer.limit((int) Math.min(buffer.capacity(), length - read));
+
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + read + buffer.position()) < 0) {
+                        throw new IOException("File ended before the region was read");
+                    }
+                }
+
+                read += buffer.position();
+                buffer.flip();
+            }
+        } catch (IOException | RuntimeException e) {
+            buffers.forEach(pool::release);
+            throw e;
+        }
+
+        return new PrefetchedContent(pool, buffers, position, length, System.currentTimeMillis() - startTime);
+    }
+
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * @return The time taken to read the content in milliseconds
+     */
+    public long getReadTime() {
+        return readTime;
+    }
+
+    @Override
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public String getType() {
+        return null;
+    }
+
+    @Override
+    public boolean retrySupported() {
+        return true;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        WritableByteChannel target = Channels.newChannel(out);
+
+        for (ByteBuffer buffer : buffers) {
+            ByteBuffer content = buffer.duplicate();
+
+            while (content.hasRemaining()) {
+                target.write(content);
+            }
+        }
+
+        out.flush();
+    }
+
+    public void release() {
+        buffers.forEach(pool::release);
+        buffers.clear();
+    }
+}
@@ -0,0 +1,107 @@
+package com.wouterbreukink.onedrive.io;
+
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * Escaping of values stored in the tab separated record files written by the client. A missing value is written
+ * as a single dash.
+ * <p>
+ * Records appended without a sync end with a checksum of their fields, see {@link #seal} and {@link #verify}. A
+ * record torn by a crash may still have the expected number of fields, but fails the checksum.
+ */
+public final class RecordFields {
+    private RecordFields() {
+    }
+
+    public static String escape(String value) {
+        if (value == null) {
+            return "-";
+        }
+
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '\\':
+                    escaped.append("\\\\");
+                    break;
+                case '\t':
+                    escaped.append("\\t");
+                    break;
+                case '\n':
+                    escaped.append("\\n");
+                    break;
+                case '\r':
+                    escaped.append("\\r");
+                    break;
+                case '-':
+                    // Escape a leading dash so it cannot be confused with a missing value
+                    escaped.append(escaped.length() == 0 ? "\\-" : "-");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+
+        return escaped.toString();
+    }
+
+    /**
+     * @return The record followed by a tab and the checksum of the record
+     */
+    public static String seal(String record) {
+        return record + "\t" + checksum(record);
+    }
+
+    /**
+     * @return The record without its checksum, or null if the checksum is missing or does not match
+     */
+    public static String verify(String line) {
+        int separator = line.lastIndexOf('\t');
+
+        if (separator < 0) {
+            return null;
+        }
+
+        String record = line.substring(0, separator);
+        return line.substring(separator + 1).equals(checksum(record)) ? record : null;
+    }
+
+    private static String checksum(String record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.getBytes(StandardCharsets.UTF_8));
+        return Long.toHexString(crc.getValue());
+    }
+
+    public static String unescape(String value) {
+        if ("-".equals(value)) {
+            return null;
+        }
+
+        StringBuilder unescaped = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                switch (next) {
+                    case 't':
+                        unescaped.append('\t');
+                        break;
+                    case 'n':
+                        unescaped.append('\n');
+                        break;
+                    case 'r':
+                        unescaped.append('\r');
+                        break;
+                    default:
+                        unescaped.append(next);
+                }
+            } else {
+                unescaped.append(c);
+            }
+        }
+
+        return unescaped.toString();
+    }
+}
@@ -0,0 +1,41 @@
+package com.wouterbreukink.onedrive.io;
+
+import com.google.api.client.http.HttpContent;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Request content that is sent no faster than its bandwidth limiter allows.
+ */
+public class ThrottledContent implements HttpContent {
+    private final HttpContent content;
+    private final BandwidthLimiter limiter;
+
+    public ThrottledContent(HttpContent content, BandwidthLimiter limiter) {
+        this.content = content;
+        this.limiter = limiter;
+    }
+
+    @Override
+    public long getLength() throws IOException {
+        return content.getLength();
+    }
+
+    @Override
+    public String getType() {
+        return content.getType();
+    }
+
+    @Override
+    public boolean retrySupported() {
+        return content.retrySupported();
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        ThrottledOutputStream throttled = new ThrottledOutputStream(out, limiter);
+        content.writeTo(throttled);
+        throttled.flush();
+    }
+}
@@ -0,0 +1,37 @@
+package com.wouterbreukink.onedrive.io;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that writes no faster than its bandwidth limiter allows.
+ */
+public class ThrottledOutputStream extends FilterOutputStream {
+    // Largest write between two acquisitions, keeps the traffic smooth at low rates
+    private static final int SLICE_SIZE = 16 * 1024;
+
+    private final BandwidthLimiter limiter;
+
+    public ThrottledOutputStream(OutputStream out, BandwidthLimiter limiter) {
+        super(out);
+        this.limiter = limiter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        limiter.acquire(1);
+        out.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int slice = Math.min(len, SLICE_SIZE);
+            limiter.acquire(slice);
+            out.write(b, off, slice);
+            off += slice;
+            len -= slice;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.wouterbreukink.onedrive.journal;
+
+import static com.wouterbreukink.onedrive.io.RecordFields.escape;
+import static com.wouterbreukink.onedrive.io.RecordFields.unescape;
+
+/**
+ * A task as recorded in the {@link TaskJournal}, holding just enough to rebuild the task in a later run.
+ */
+public class JournalEntry {
+    private final int id;
+    private final String type;
+    private final int attempt;
+    private final boolean replace;
+    private final String remoteId;
+    private final String localPath;
+
+    public JournalEntry(int id, String type, int attempt, boolean replace, String remoteId, String localPath) {
+        this.id = id;
+        this.type = type;
+        this.attempt = attempt;
+        this.replace = replace;
+        this.remoteId = remoteId;
+        this.localPath = localPath;
+    }
+
+    static JournalEntry parse(String[] fields) {
+        return new JournalEntry(
+            Integer.parseInt(fields[1]),
+            fields[2],
+            Integer.parseInt(fields[3]),
+            "1".equals(fields[4]),
+            unescape(fields[5]),
+            unescape(fields[6])
+        );
+    }
+
+    String format() {
+        return String.join(
+            "\t",
+            "E",
+            Integer.toString(id),
+            type,
+            Integer.toString(attempt),
+            replace ? "1" : "0",
+            escape(remoteId),
+            escape(localPath)
+        );
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public int getAttempt() {
+        return attempt;
+    }
+
+    public boolean isReplace() {
+        return replace;
+    }
+
+    public String getRemoteId() {
+        return remoteId;
+    }
+
+    public String getLocalPath() {
+        return localPath;
+    }
+}
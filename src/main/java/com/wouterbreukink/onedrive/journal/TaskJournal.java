@@ -0,0 +1,267 @@
+package com.wouterbreukink.onedrive.journal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.wouterbreukink.onedrive.io.RecordFields.seal;
+import static com.wouterbreukink.onedrive.io.RecordFields.verify;
+
+/**
+ * Append-only on-disk record of queued and completed tasks, used to resume an interrupted synchronisation.
+ * <p>
+ * Records are buffered in memory and written by a background thread in groups, with one sync per group, so that
+ * journaling does not slow down the workers. The journal is rewritten with just the outstanding tasks whenever the
+ * number of completion records grows large compared to the outstanding work.
+ * <p>
+ * Nothing is written until {@link #start()} is called, so a previous journal stays intact while its tasks are
+ * being replayed into this one.
+ * <p>
+ * Each record ends with a checksum of its fields. A record torn by a crash, which may still have the expected
+ * number of fields, is ignored when the journal is read.
+ */
+public class TaskJournal {
+    private static final Logger log = LoggerFactory.getLogger(TaskJournal.class);
+
+    // Maximum time records are held in memory before being written
+    private static final long COMMIT_INTERVAL = 1000;
+    // Number of buffered records that triggers an early commit
+    private static final int COMMIT_SIZE = 1000;
+    // Minimum number of completion records before compacting
+    private static final int COMPACT_THRESHOLD = 10000;
+
+    private final Path path;
+    private final Object lock = new Object();
+    // Outstanding tasks by id, in the order they were queued
+    private final Map<Integer, JournalEntry> outstanding = new LinkedHashMap<>();
+    private List<String> pending = new ArrayList<>();
+    private int completedSinceCompaction;
+    private Writer writer;
+    private FileOutputStream stream;
+    private Thread committer;
+    private volatile boolean closed;
+
+    public TaskJournal(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Read the tasks of a journal that were queued but did not complete.
+     *
+     * @param path The journal file
+     * @return The outstanding tasks in the order they were queued, empty if there is no journal
+     */
+    public static Collection<JournalEntry> readOutstanding(Path path) throws IOException {
+        Map<Integer, JournalEntry> entries = new LinkedHashMap<>();
+
+        if (!Files.exists(path)) {
+            return entries.values();
+        }
+
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String record = verify(line);
+
+                if (record == null) {
+                    log.warn("Ignoring damaged journal record '{}'", line);
+                    continue;
+                }
+
+                String[] fields = record.split("\t", -1);
+
+                try {
+                    if (fields[0].equals("E") && fields.length == 7) {
+                        JournalEntry entry = JournalEntry.parse(fields);
+                        entries.put(entry.getId(), entry);
+                    } else if (fields[0].equals("C") && fields.length == 2) {
+                        entries.remove(Integer.parseInt(fields[1]));
+                    } else {
+                        log.warn("Ignoring malformed journal record '{}'", line);
+                    }
+                } catch (NumberFormatException e) {
+                    // Most likely a record torn by a crash
+                    log.warn("Ignoring malformed journal record '{}'", line);
+                }
+            }
+        }
+
+        return entries.values();
+    }
+
+    public void enqueued(JournalEntry entry) {
+        synchronized (lock) {
+            outstanding.put(entry.getId(), entry);
+            append(entry.format());
+        }
+    }
+
+    public void completed(int id) {
+        synchronized (lock) {
+            if (outstanding.remove(id) != null) {
+                completedSinceCompaction++;
+                append("C\t" + id);
+            }
+        }
+    }
+
+    private void append(String record) {
+        pending.add(seal(record));
+
+        if (pending.size() >= COMMIT_SIZE) {
+            lock.notifyAll();
+        }
+    }
+
+    public int getOutstandingCount() {
+        synchronized (lock) {
+            return outstanding.size();
+        }
+    }
+
+    /**
+     * Replace the journal file with the tasks recorded so far and start committing new records.
+     */
+    public void start() throws IOException {
+        List<JournalEntry> snapshot;
+        synchronized (lock) {
+            snapshot = new ArrayList<>(outstanding.values());
+            pending = new ArrayList<>();
+            completedSinceCompaction = 0;
+        }
+
+        compact(snapshot);
+
+        committer = new Thread(() -> {
+            try {
+                while (!closed) {
+                    synchronized (lock) {
+                        if (pending.size() < COMMIT_SIZE) {
+                            lock.wait(COMMIT_INTERVAL);
+                        }
+                    }
+
+                    commit();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                log.error("Unable to write task journal {} - resuming will not be possible", path, e);
+            }
+        }, "task-journal");
+
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    // Only called by one thread at a time, the committer thread once it has started
+    private void commit() throws IOException {
+        List<String> records;
+        List<JournalEntry> snapshot = null;
+        synchronized (lock) {
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            // The snapshot includes the effect of the pending records, so they do not need to be written
+            if (completedSinceCompaction > COMPACT_THRESHOLD && completedSinceCompaction > outstanding.size() * 2) {
+                snapshot = new ArrayList<>(outstanding.values());
+                completedSinceCompaction = 0;
+            }
+
+            records = pending;
+            pending = new ArrayList<>();
+        }
+
+        // Written outside the lock, so workers recording tasks are not held up by the disk
+        if (snapshot != null) {
+            compact(snapshot);
+            return;
+        }
+
+        for (String record : records) {
+            writer.write(record);
+            writer.write('\n');
+        }
+
+        writer.flush();
+        stream.getChannel().force(false);
+    }
+
+    // Replace the journal with the given outstanding tasks, records made since the snapshot go to the new file
+    private void compact(List<JournalEntry> snapshot) throws IOException {
+        Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+
+        try (FileOutputStream tempStream = new FileOutputStream(tempPath.toFile());
+             Writer tempWriter = new BufferedWriter(new OutputStreamWriter(tempStream, StandardCharsets.UTF_8))) {
+            for (JournalEntry entry : snapshot) {
+                String record = entry.format();
+                tempWriter.write(seal(record));
+                tempWriter.write('\n');
+            }
+
+            tempWriter.flush();
+            tempStream.getChannel().force(false);
+        }
+
+        if (writer != null) {
+            writer.close();
+        }
+
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        stream = new FileOutputStream(path.toFile(), true);
+        writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+
+        log.debug("Compacted task journal {} to {} outstanding tasks", path, snapshot.size());
+    }
+
+    /**
+     * Write any buffered records and close the journal. The journal file is removed if no work is outstanding.
+     */
+    public void close() throws IOException {
+        closed = true;
+
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+
+        if (committer != null) {
+            try {
+                committer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (writer == null) {
+            return;
+        }
+
+        commit();
+        writer.close();
+
+        synchronized (lock) {
+            if (outstanding.isEmpty()) {
+                Files.delete(path);
+            } else {
+                log.info("{} unfinished tasks remain in journal {}", outstanding.size(), path);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.wouterbreukink.onedrive.retry;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential back-off with decorrelated jitter, each delay is picked at random between the base delay and three
+ * times the previous delay (capped). Spreading the delays prevents clients that failed together from retrying
+ * together.
+ * <p>
+ * Instances hold the state of a single task or request and are not thread-safe.
+ */
+public class DecorrelatedJitterBackOff {
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private long previousDelay;
+
+    public DecorrelatedJitterBackOff(long baseDelayMillis, long maxDelayMillis) {
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.previousDelay = baseDelayMillis;
+    }
+
+    public long nextDelay() {
+        long upper = Math.min(maxDelayMillis, previousDelay * 3);
+
+        if (upper <= baseDelayMillis) {
+            previousDelay = baseDelayMillis;
+        } else {
+            previousDelay = baseDelayMillis + ThreadLocalRandom.current().nextLong(upper - baseDelayMillis + 1);
+        }
+
+        return previousDelay;
+    }
+
+    /**
+     * Starts again from the base delay, for work that made progress since it last failed.
+     */
+    public void reset() {
+        previousDelay = baseDelayMillis;
+    }
+}
@@ -0,0 +1,52 @@
+package com.wouterbreukink.onedrive.retry;
+
+import com.google.api.client.http.HttpHeaders;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Parser for the Retry-After header sent along with 429 and 503 responses.
+ */
+public final class RetryAfter {
+    private RetryAfter() {}
+
+    /**
+     * Get the delay requested by the server.
+     *
+     * @param headers The response headers, may be null
+     * @return The delay in milliseconds, or -1 if the server did not specify one
+     */
+    public static long getDelay(HttpHeaders headers) {
+        return headers == null ? -1 : parse(headers.getRetryAfter());
+    }
+
+    /**
+     * Parse a Retry-After value, which is either a number of seconds or a HTTP date.
+     *
+     * @param value The header value, may be null
+     * @return The delay in milliseconds, or -1 if the value is missing or invalid
+     */
+    public static long parse(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return -1;
+        }
+
+        value = value.trim();
+
+        try {
+            long seconds = Long.parseLong(value);
+            return seconds < 0 ? -1 : seconds * 1000;
+        } catch (NumberFormatException e) {
+            // Not delta-seconds, try a HTTP date instead
+        }
+
+        try {
+            long date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            return Math.max(0, date - System.currentTimeMillis());
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.wouterbreukink.onedrive.retry;
+
+/**
+ * Describes how often an operation may be tried and how long to wait between attempts.
+ */
+public class RetryPolicy {
+    private final int maxTries;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+
+    public RetryPolicy(int maxTries, long baseDelayMillis, long maxDelayMillis) {
+        if (baseDelayMillis <= 0 || maxDelayMillis < baseDelayMillis) {
+            throw new IllegalArgumentException("Invalid retry delays");
+        }
+
+        this.maxTries = maxTries;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    public int getMaxTries() {
+        return maxTries;
+    }
+
+    public boolean canRetry(int attempt) {
+        return attempt < maxTries;
+    }
+
+    /**
+     * Create fresh back-off state, each task or request should own its own instance.
+     */
+    public DecorrelatedJitterBackOff newBackOff() {
+        return new DecorrelatedJitterBackOff(baseDelayMillis, maxDelayMillis);
+    }
+}
@@ -2,14 +2,26 @@ package com.wouterbreukink.onedrive.tasks;
 
 import com.google.api.client.util.Maps;
 import com.google.api.client.util.Preconditions;
+import com.wouterbreukink.onedrive.CommandLineOpts;
+import com.wouterbreukink.onedrive.TaskQueue;
 import com.wouterbreukink.onedrive.client.OneDriveItem;
+import com.wouterbreukink.onedrive.client.downloader.PartialDownload;
+import com.wouterbreukink.onedrive.journal.JournalEntry;
 import com.wouterbreukink.onedrive.filesystem.FileSystemProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 import static com.wouterbreukink.onedrive.CommandLineOpts.getCommandLineOpts;
 
@@ -20,6 +32,7 @@ public class CheckTask extends Task {
 
     private final OneDriveItem remoteFile, remoteRoot;
     private final File localFile, localRoot;
+    private final int depth;
 
     public CheckTask(TaskOptions options, OneDriveItem remoteRoot, OneDriveItem remoteFile, File localRoot, File localFile) {
         super(options);
@@ -27,12 +40,33 @@ public class CheckTask extends Task {
         this.remoteRoot = Preconditions.checkNotNull(remoteRoot);
         this.localFile = Preconditions.checkNotNull(localFile);
         this.localRoot = Preconditions.checkNotNull(localRoot);
+        this.depth = depth(localRoot, localFile);
     }
 
     public int priority() {
         return PRIORITY;
     }
 
+    @Override
+    public Type type() {
+        return Type.CHECK;
+    }
+
+    @Override
+    protected TaskQueue.Lane assignLane() {
+        return TaskQueue.Lane.METADATA;
+    }
+
+    @Override
+    public JournalEntry journalEntry() {
+        return journalEntry(false, remoteFile, localFile);
+    }
+
+    @Override
+    protected int depth() {
+        return depth;
+    }
+
     @Override
     public String toString() {
         return String.format("Checking %s %s", remoteFile.isDirectory() ? "folder" : "file", remoteFile.getFullName());
@@ -42,6 +76,11 @@ public class CheckTask extends Task {
     protected void taskBody() throws IOException {
         if (localFile.isDirectory() && remoteFile.isDirectory()) { // If we are syncing folders
 
+            // Do not list the folder until there is room for its content
+            if (deferExpansion(() -> new CheckTask(getTaskOptions(), remoteRoot, remoteFile, localRoot, localFile))) {
+                return;
+            }
+
             // Verify the timestamps
             FileSystemProvider.FileMatch match = fileSystem.verifyMatch(
                     localFile,
@@ -54,41 +93,30 @@ public class CheckTask extends Task {
 
             OneDriveItem[] remoteFiles = api.getChildren(remoteFile);
 
-            // Index the local files
+            // Index the local files, reading their attributes in the same pass
             Map<String, File> localFileCache = Maps.newHashMap();
-            //noinspection ConstantConditions
-
-            File[] files = localFile.listFiles();
-            if (files == null) {
+            Map<String, BasicFileAttributes> localAttributes = Maps.newHashMap();
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(localFile.toPath())) {
+                for (Path path : stream) {
+                    File file = path.toFile();
+                    localFileCache.put(file.getName(), file);
+
+                    try {
+                        localAttributes.put(file.getName(), Files.readAttributes(path, BasicFileAttributes.class));
+                    } catch (IOException e) {
+                        // Left to a separate check task
+                        log.debug("Unable to read attributes of {} - {}", file.getPath(), e.getMessage());
+                    }
+                }
+            } catch (IOException e) {
                 log.warn("Unable to recurse into local directory {}", localFile.getPath());
                 reporter.skipped();
                 return;
             }
 
-            for (File file : files) {
-                localFileCache.put(file.getName(), file);
-            }
-
-            // Iterate over all the remote files
-            for (OneDriveItem remoteFile : remoteFiles) {
-                if (remoteFile.isDirectory() && !getCommandLineOpts().isRecursive()) {
-                    continue;
-                }
-
-                File localFile = localFileCache.remove(remoteFile.getName());
-                processChild(remoteFile, localFile);
-            }
-
-            // Iterate over any local files we've not matched yet
-            for (File localFile : localFileCache.values()) {
-
-                if (localFile.isDirectory() && !getCommandLineOpts().isRecursive()) {
-                    continue;
-                }
-
-                processChild(null, localFile);
-            }
-
+            // Children are created as they are queued, so a parked continuation only holds the listings
+            addAll(new Children(remoteFiles, localFileCache, localAttributes));
             return;
 
         }
@@ -154,7 +182,97 @@ public class CheckTask extends Task {
         }
     }
 
-    private void processChild(OneDriveItem remoteFile, File localFile) {
+    private static boolean isPartialDownload(String name, Set<String> remoteNames) {
+        if (name.endsWith(PartialDownload.SUFFIX)) {
+            name = name.substring(0, name.length() - PartialDownload.SUFFIX.length());
+        }
+
+        return name.endsWith(".tmp") && remoteNames.contains(name.substring(0, name.length() - ".tmp".length()));
+    }
+
+    /**
+     * The tasks for the content of a folder, first for all remote files and then for any local files that have not
+     * been matched to a remote file.
+     */
+    private class Children implements Iterator<Task> {
+        private final OneDriveItem[] remoteFiles;
+        private final Map<String, File> localFileCache;
+        private final Map<String, BasicFileAttributes> localAttributes;
+        private final Set<String> remoteNames = new HashSet<>();
+        private Iterator<File> localFiles;
+        private int remoteIndex;
+        private Task next;
+
+        private Children(OneDriveItem[] remoteFiles, Map<String, File> localFileCache,
+                         Map<String, BasicFileAttributes> localAttributes) {
+            this.remoteFiles = remoteFiles;
+            this.localFileCache = localFileCache;
+            this.localAttributes = localAttributes;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (remoteIndex < remoteFiles.length) {
+                    next = nextRemote(remoteFiles[remoteIndex++]);
+                } else {
+                    if (localFiles == null) {
+                        localFiles = localFileCache.values().iterator();
+                    }
+
+                    if (!localFiles.hasNext()) {
+                        return false;
+                    }
+
+                    next = nextLocal(localFiles.next());
+                }
+            }
+
+            return true;
+        }
+
+        @Override
+        public Task next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            Task task = next;
+            next = null;
+            return task;
+        }
+
+        private Task nextRemote(OneDriveItem remoteFile) {
+            remoteNames.add(remoteFile.getName());
+
+            if (remoteFile.isDirectory() && !getCommandLineOpts().isRecursive()) {
+                return null;
+            }
+
+            File localFile = localFileCache.remove(remoteFile.getName());
+            return processChild(remoteFile, localFile, localAttributes.get(remoteFile.getName()));
+        }
+
+        // Any local files we've not matched yet
+        private Task nextLocal(File localFile) {
+            // Leave partial downloads of remote files alone, the download continues from them
+            if (getCommandLineOpts().getDirection() == CommandLineOpts.Direction.DOWN
+                && isPartialDownload(localFile.getName(), remoteNames)) {
+                return null;
+            }
+
+            BasicFileAttributes attributes = localAttributes.get(localFile.getName());
+            boolean isDirectory = attributes != null ? attributes.isDirectory() : localFile.isDirectory();
+
+            if (isDirectory && !getCommandLineOpts().isRecursive()) {
+                return null;
+            }
+
+            return processChild(null, localFile, attributes);
+        }
+    }
+
+    private Task processChild(OneDriveItem remoteFile, File localFile, BasicFileAttributes localAttributes) {
 
         if (remoteFile == null && localFile == null) {
             throw new IllegalArgumentException("Must specify at least one file");
@@ -162,7 +280,7 @@ public class CheckTask extends Task {
 
         if (remoteFile != null && isIgnored(remoteRoot, remoteFile) || localFile != null && isIgnored(localRoot, localFile)) {
             reporter.skipped();
-            return;
+            return null;
         }
 
         boolean remoteOnly = localFile == null;
@@ -172,11 +290,9 @@ public class CheckTask extends Task {
         if (remoteOnly) {
             switch (getCommandLineOpts().getDirection()) {
                 case UP:
-                    queue.add(new DeleteTask(getTaskOptions(), remoteFile));
-                    break;
+                    return new DeleteTask(getTaskOptions(), remoteFile);
                 case DOWN:
-                    queue.add(new DownloadTask(getTaskOptions(), this.localFile, remoteRoot, remoteFile, false));
-                    break;
+                    return new DownloadTask(getTaskOptions(), this.localFile, remoteRoot, remoteFile, false);
                 default:
                     throw new IllegalStateException("Unsupported direction " + getCommandLineOpts().getDirection());
             }
@@ -186,19 +302,67 @@ public class CheckTask extends Task {
         else if (localOnly) {
             switch (getCommandLineOpts().getDirection()) {
                 case UP:
-                    queue.add(new UploadTask(getTaskOptions(), this.remoteFile, localRoot, localFile, false));
-                    break;
+                    return new UploadTask(getTaskOptions(), this.remoteFile, localRoot, localFile, false);
                 case DOWN:
-                    queue.add(new DeleteTask(getTaskOptions(), localFile));
-                    break;
+                    return new DeleteTask(getTaskOptions(), localFile);
                 default:
                     throw new IllegalStateException("Unsupported direction " + getCommandLineOpts().getDirection());
             }
         }
 
-        // Case 3: We have the file in both locations
+        // Case 3: We have the file in both locations, compare plain files straight away
+        else if (localAttributes != null && localAttributes.isRegularFile() && !remoteFile.isDirectory()) {
+            return compareFiles(remoteFile, localFile, localAttributes);
+        }
+
+        // Case 4: We have a folder in both locations, or need to look closer
         else {
-            queue.add(new CheckTask(getTaskOptions(), remoteRoot, remoteFile, localRoot, localFile));
+            return new CheckTask(getTaskOptions(), remoteRoot, remoteFile, localRoot, localFile);
         }
     }
+
+    /**
+     * Compare a file that exists in both locations using the attributes read while listing the folder. Only files
+     * whose size matches but whose timestamps do not (or all files if hashes are compared) need a separate check.
+     *
+     * @return The task needed to bring the file in sync, or null if it is already in sync or skipped
+     */
+    private Task compareFiles(OneDriveItem remoteFile, File localFile, BasicFileAttributes localAttributes) {
+        boolean sizeInvalid = getCommandLineOpts().getDirection() == CommandLineOpts.Direction.UP
+            ? isSizeInvalid(localFile.getPath(), localAttributes.size())
+            : isSizeInvalid(remoteFile);
+
+        if (sizeInvalid) {
+            reporter.skipped();
+            return null;
+        }
+
+        if (!getCommandLineOpts().useHash()) {
+            FileSystemProvider.FileMatch match = fileSystem.verifyMatch(
+                    localAttributes,
+                    remoteFile.getSize(),
+                    remoteFile.getCreatedDateTime(),
+                    remoteFile.getLastModifiedDateTime()
+            );
+
+            if (match == FileSystemProvider.FileMatch.YES) {
+                reporter.same();
+                return null;
+            }
+        }
+
+        // A different size means different content, no need to compare hashes
+        if (localAttributes.size() != remoteFile.getSize()) {
+            switch (getCommandLineOpts().getDirection()) {
+                case UP:
+                    return new UploadTask(getTaskOptions(), this.remoteFile, localRoot, localFile, true);
+                case DOWN:
+                    return new DownloadTask(getTaskOptions(), this.localFile, remoteRoot, remoteFile, true);
+                default:
+                    throw new IllegalStateException("Unsupported direction " + getCommandLineOpts().getDirection());
+            }
+        }
+
+        return new CheckTask(getTaskOptions(), remoteRoot, remoteFile, localRoot, localFile);
+    }
 }
@@ -0,0 +1,67 @@
+package com.wouterbreukink.onedrive.tasks;
+
+import com.google.api.client.util.Preconditions;
+import com.wouterbreukink.onedrive.TaskQueue;
+import com.wouterbreukink.onedrive.journal.JournalEntry;
+
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Queues the remaining children of a task that was expanded while the queue was at capacity.
+ */
+class ContinuationTask extends Task {
+    private final Task parent;
+    private final Iterator<? extends Task> remaining;
+    private boolean started;
+
+    ContinuationTask(TaskOptions options, Task parent, Iterator<? extends Task> remaining) {
+        super(options);
+
+        this.parent = Preconditions.checkNotNull(parent);
+        this.remaining = Preconditions.checkNotNull(remaining);
+    }
+
+    public int priority() {
+        return parent.priority();
+    }
+
+    @Override
+    public Type type() {
+        return parent.type();
+    }
+
+    @Override
+    protected TaskQueue.Lane assignLane() {
+        return TaskQueue.Lane.METADATA;
+    }
+
+    @Override
+    public JournalEntry journalEntry() {
+        // The remaining children are not journaled, resuming repeats the parent task instead
+        JournalEntry entry = parent.journalEntry();
+        return new JournalEntry(
+            getTaskId(), entry.getType(), 0, entry.isReplace(), entry.getRemoteId(), entry.getLocalPath()
+        );
+    }
+
+    @Override
+    protected int depth() {
+        return parent.depth();
+    }
+
+    @Override
+    public String toString() {
+        return "Continue " + parent.toString();
+    }
+
+    @Override
+    protected void taskBody() throws IOException {
+        if (!started) {
+            started = true;
+            queue.continued();
+        }
+
+        addAll(remaining);
+    }
+}
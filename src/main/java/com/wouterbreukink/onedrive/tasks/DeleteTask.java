@@ -1,7 +1,9 @@
 package com.wouterbreukink.onedrive.tasks;
 
 import com.google.api.client.util.Preconditions;
+import com.wouterbreukink.onedrive.TaskQueue;
 import com.wouterbreukink.onedrive.client.OneDriveItem;
+import com.wouterbreukink.onedrive.journal.JournalEntry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,6 +36,21 @@ public class DeleteTask extends Task {
         return PRIORITY;
     }
 
+    @Override
+    public Type type() {
+        return Type.DELETE;
+    }
+
+    @Override
+    protected TaskQueue.Lane assignLane() {
+        return TaskQueue.Lane.MAINTENANCE;
+    }
+
+    @Override
+    public JournalEntry journalEntry() {
+        return journalEntry(false, remoteFile, localFile);
+    }
+
     @Override
     public String toString() {
         if (localFile != null) {
@@ -1,17 +1,26 @@
 package com.wouterbreukink.onedrive.tasks;
 
 import com.google.api.client.util.Preconditions;
+import com.wouterbreukink.onedrive.TaskQueue;
 import com.wouterbreukink.onedrive.client.OneDriveItem;
-import utils.hash.HashUtil;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.wouterbreukink.onedrive.client.downloader.PartialDownload;
 import com.wouterbreukink.onedrive.client.downloader.ResumableDownloader;
 import com.wouterbreukink.onedrive.client.downloader.ResumableDownloaderProgressListener;
+import com.wouterbreukink.onedrive.client.facets.HashesFacet;
+import com.wouterbreukink.onedrive.filesystem.FileHashes;
+import com.wouterbreukink.onedrive.filesystem.hash.MultiHasher;
+import com.wouterbreukink.onedrive.journal.JournalEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import utils.string.FormatUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.EnumSet;
 
+import static com.wouterbreukink.onedrive.CommandLineOpts.getCommandLineOpts;
 import static com.wouterbreukink.onedrive.LogUtils.readableFileSize;
 import static com.wouterbreukink.onedrive.LogUtils.readableTime;
 
@@ -22,6 +31,7 @@ public class DownloadTask extends Task {
     private final File parent;
     private final OneDriveItem remoteFile, remoteRoot;
     private final boolean replace;
+    private final int depth;
 
     public DownloadTask(TaskOptions options, File parent, OneDriveItem remoteRoot, OneDriveItem remoteFile, boolean replace) {
         super(options);
@@ -30,6 +40,7 @@ public class DownloadTask extends Task {
         this.remoteFile = Preconditions.checkNotNull(remoteFile);
         this.remoteRoot = Preconditions.checkNotNull(remoteRoot);
         this.replace = Preconditions.checkNotNull(replace);
+        this.depth = depth(remoteRoot, remoteFile);
 
         if (!parent.isDirectory()) {
             throw new IllegalArgumentException("Specified parent is not a folder");
@@ -40,6 +51,31 @@ public class DownloadTask extends Task {
         return PRIORITY;
     }
 
+    @Override
+    public Type type() {
+        return Type.DOWNLOAD;
+    }
+
+    @Override
+    protected TaskQueue.Lane assignLane() {
+        return remoteFile.isDirectory() ? TaskQueue.Lane.METADATA : transferLane(transferSize());
+    }
+
+    @Override
+    public long transferSize() {
+        return remoteFile.isDirectory() ? 0 : remoteFile.getSize();
+    }
+
+    @Override
+    public JournalEntry journalEntry() {
+        return journalEntry(replace, remoteFile, parent);
+    }
+
+    @Override
+    protected int depth() {
+        return depth;
+    }
+
     @Override
     public String toString() {
         return "Download " + remoteFile.getFullName();
@@ -59,12 +95,18 @@ public class DownloadTask extends Task {
         }
 
         if (remoteFile.isDirectory()) {
+            if (deferExpansion(() -> new DownloadTask(getTaskOptions(), parent, remoteRoot, remoteFile, replace))) {
+                return;
+            }
+
             File newParent = fileSystem.createFolder(parent, remoteFile.getName());
             queue.add(new UpdatePropertiesTask(getTaskOptions(), remoteFile, newParent));
 
-            for (OneDriveItem item : api.getChildren(remoteFile)) {
-                queue.add(new DownloadTask(getTaskOptions(), newParent, remoteRoot, item, false));
-            }
+            addAll(
+                Arrays.stream(api.getChildren(remoteFile))
+                    .map(item -> new DownloadTask(getTaskOptions(), newParent, remoteRoot, item, false))
+                    .iterator()
+            );
         } else {
             if (isSizeInvalid(remoteFile)) {
                 reporter.skipped();
@@ -131,34 +173,46 @@ public class DownloadTask extends Task {
                                     startTimeInner = System.currentTimeMillis();
                                     break;
                                 case MEDIA_COMPLETE:
-                                    long elapsedTime = System.currentTimeMillis() - startTime;
-                                    log.info(
-                                        "Downloaded {} in {} ({}/s) of {} file {}",
-                                        readableFileSize(remoteFile.getSize()),
-                                        readableTime(elapsedTime),
-                                        elapsedTime > 0 ? readableFileSize(remoteFile.getSize() / (elapsedTime / 1000d)) : 0,
-                                        replace ? "replaced" : "new",
-                                        remoteFile.getFullName()
-                                    );
+                                    logDownloaded(startTime);
                             }
                         }
                     };
 
-                    api.download(remoteFile, downloadFile, progressListener);
+                    // Do a CRC check on the downloaded file if available, otherwise check the sha1sum or quickXorHash
+                    HashesFacet remoteHashes = remoteFile.getHashes();
+                    MultiHasher.Algorithm algorithm = verificationAlgorithm(remoteHashes);
 
-                    // Do a CRC check on the downloaded file if available, otherwise check the sha1sum
-                    if (remoteFile.getHashes().hasCrc32Hash()) {
-                        if (!fileSystem.verifyCrc(downloadFile, remoteFile.getCrc32())) {
-                            throw new IOException(String.format("Download of file '%s' failed", remoteFile.getFullName()));
-                        }
-                    } else if (remoteFile.getHashes().hasSha1Hash()) {
-                        if (!fileSystem.verifySha1Hash(downloadFile, remoteFile.getHashes().getSha1Hash())) {
-                            throw new IOException(String.format("Download of file '%s' failed, hash mismatch, remote hash: %s, localHash: %s", remoteFile.getFullName(), remoteFile.getHashes().getSha1Hash(), HashUtil.getFileSha1Hash(downloadFile)));
-                        }
-                    } else {
+                    if (algorithm == null) {
                         throw new IOException(String.format("Download of file '%s' failed, no hash or crc available of remote file!", remoteFile.getFullName()));
                     }
 
+                    // The content is hashed while it is written, so the file does not have to be read again
+                    FileHashes downloaded;
+                    long parallelDownloadSize = getCommandLineOpts().getParallelDownloadSize() * 1024L * 1024L;
+
+                    if (parallelDownloadSize > 0 && remoteFile.getSize() > parallelDownloadSize) {
+                        downloaded = api.downloadRanges(remoteFile, downloadFile, getCommandLineOpts().getDownloadRanges(), EnumSet.of(algorithm));
+                        logDownloaded(startTime);
+                    } else {
+                        downloaded = api.download(remoteFile, downloadFile, progressListener, EnumSet.of(algorithm));
+                    }
+
+                    // The file as it was written, the hashes are only remembered if it is unchanged after verifying
+                    BasicFileAttributes written = fileSystem.readAttributes(downloadFile);
+
+                    if (!verify(downloadFile, downloaded, algorithm)) {
+                        // The content is wrong, do not continue from it
+                        PartialDownload.discard(downloadFile);
+                        throw new IOException(String.format(
+                            "Download of file '%s' failed, hash mismatch, remote hash: %s, local hash: %s",
+                            remoteFile.getFullName(),
+                            remoteHash(remoteHashes, algorithm),
+                            downloaded != null ? localHash(downloaded, algorithm) : "unknown"));
+                    }
+
+                    // The verified content has the hashes reported by the server
+                    fileSystem.storeHashes(downloadFile, written, FileHashes.from(remoteHashes).merge(downloaded));
+
                     fileSystem.setAttributes(
                             downloadFile,
                             remoteFile.getCreatedDateTime(),
@@ -173,7 +227,8 @@ public class DownloadTask extends Task {
                     reporter.skipped();
                 }
             } catch (IOException e) {
-                if (downloadFile != null) {
+                // A partial download is kept to be continued by the next attempt
+                if (downloadFile != null && !PartialDownload.exists(downloadFile)) {
                     if (!downloadFile.delete()) {
                         log.warn("Unable to remove temporary file {}", downloadFile.getPath());
                     }
@@ -183,5 +238,76 @@ public class DownloadTask extends Task {
             }
         }
     }
-}
 
+    private void logDownloaded(long startTime) {
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        log.info(
+            "Downloaded {} in {} ({}/s) of {} file {}",
+            readableFileSize(remoteFile.getSize()),
+            readableTime(elapsedTime),
+            elapsedTime > 0 ? readableFileSize(remoteFile.getSize() / (elapsedTime / 1000d)) : 0,
+            replace ? "replaced" : "new",
+            remoteFile.getFullName()
+        );
+    }
+
+    private static MultiHasher.Algorithm verificationAlgorithm(HashesFacet hashes) {
+        if (hashes.hasCrc32Hash()) {
+            return MultiHasher.Algorithm.CRC32;
+        } else if (hashes.hasSha1Hash()) {
+            return MultiHasher.Algorithm.SHA1;
+        } else if (hashes.hasQuickXorHash()) {
+            return MultiHasher.Algorithm.QUICK_XOR;
+        } else {
+            return null;
+        }
+    }
+
+    private boolean verify(File downloadFile, FileHashes downloaded, MultiHasher.Algorithm algorithm) throws IOException {
+        HashesFacet remoteHashes = remoteFile.getHashes();
+
+        if (downloaded == null) {
+            // Nothing was downloaded or hashed on the way, leave it to the file system
+            switch (algorithm) {
+                case CRC32:
+                    return fileSystem.verifyCrc(downloadFile, remoteHashes.getCrc32());
+                case SHA1:
+                    return fileSystem.verifySha1Hash(downloadFile, remoteHashes.getSha1Hash());
+                default:
+                    return fileSystem.verifyQuickXorHash(downloadFile, remoteHashes.getQuickXorHash());
+            }
+        }
+
+        switch (algorithm) {
+            case CRC32:
+                return downloaded.getCrc32() == remoteHashes.getCrc32();
+            case SHA1:
+                return downloaded.getSha1Hash().equalsIgnoreCase(remoteHashes.getSha1Hash());
+            default:
+                return downloaded.getQuickXorHash().equals(remoteHashes.getQuickXorHash());
+        }
+    }
+
+    private static String remoteHash(HashesFacet hashes, MultiHasher.Algorithm algorithm) {
+        switch (algorithm) {
+            case CRC32:
+                return hashes.getCrc32Hash();
+            case SHA1:
+                return hashes.getSha1Hash();
+            default:
+                return hashes.getQuickXorHash();
+        }
+    }
+
+    private static String localHash(FileHashes hashes, MultiHasher.Algorithm algorithm) {
+        switch (algorithm) {
+            case CRC32:
+                // Same byte order as the crc32Hash reported by the server
+                return String.format("%08X", Integer.reverseBytes(hashes.getCrc32().intValue()));
+            case SHA1:
+                return hashes.getSha1Hash();
+            default:
+                return hashes.getQuickXorHash();
+        }
+    }
+}
@@ -6,6 +6,10 @@ import com.wouterbreukink.onedrive.TaskQueue;
 import com.wouterbreukink.onedrive.client.OneDriveItem;
 import com.wouterbreukink.onedrive.client.OneDriveProvider;
 import com.wouterbreukink.onedrive.filesystem.FileSystemProvider;
+import com.wouterbreukink.onedrive.journal.JournalEntry;
+import com.wouterbreukink.onedrive.retry.DecorrelatedJitterBackOff;
+import com.wouterbreukink.onedrive.retry.RetryAfter;
+import com.wouterbreukink.onedrive.retry.RetryPolicy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import utils.file.FileUtil;
@@ -14,13 +18,21 @@ import utils.file.path.PathPatternMatcherGroup;
 import java.io.File;
 import java.io.IOException;
 import java.net.SocketException;
+import java.nio.file.Path;
+import java.util.Iterator;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import static com.wouterbreukink.onedrive.CommandLineOpts.getCommandLineOpts;
+import static com.wouterbreukink.onedrive.LogUtils.readableTime;
 
 public abstract class Task implements Runnable, Comparable<Task> {
     private static final Logger log = LoggerFactory.getLogger(Task.class);
     private static AtomicInteger taskIdCounter = new AtomicInteger(1);
+    // Delays between attempts of a single task
+    private static final long RETRY_BASE_DELAY = 1000, RETRY_MAX_DELAY = 60000;
+    // Minimum delay after being throttled without a Retry-After hint
+    private static final long THROTTLE_DELAY = 30000;
     protected final TaskQueue queue;
     protected final OneDriveProvider api;
     protected final FileSystemProvider fileSystem;
@@ -28,6 +40,8 @@ public abstract class Task implements Runnable, Comparable<Task> {
 
     private final int id;
     private int attempt;
+    private DecorrelatedJitterBackOff backOff;
+    private TaskQueue.Lane lane;
 
     protected Task(TaskOptions options) {
         this.queue = Preconditions.checkNotNull(options.getQueue());
@@ -46,7 +60,7 @@ public abstract class Task implements Runnable, Comparable<Task> {
         return isSizeInvalid(remoteFile.getFullName(), remoteFile.getSize());
     }
 
-    private static boolean isSizeInvalid(String filename, long size) {
+    protected static boolean isSizeInvalid(String filename, long size) {
         int maxSizeKb = getCommandLineOpts().getMaxSizeKb();
         if (maxSizeKb > 0 && size > maxSizeKb * 1024) {
             log.debug(
@@ -123,57 +137,244 @@ public abstract class Task implements Runnable, Comparable<Task> {
 
     protected abstract int priority();
 
+    public abstract Type type();
+
+    /**
+     * Get the lane this task is scheduled in, it is fixed the first time the task is queued.
+     */
+    public final TaskQueue.Lane lane() {
+        if (lane == null) {
+            lane = assignLane();
+        }
+
+        return lane;
+    }
+
+    protected abstract TaskQueue.Lane assignLane();
+
+    /**
+     * Get the number of bytes this task transfers, used to limit the amount of data in flight. The size must not
+     * change once the task has been queued.
+     */
+    public long transferSize() {
+        return 0;
+    }
+
+    /**
+     * Get the depth of the item handled by this task below the root, deeper tasks run first so that subtrees are
+     * finished before new ones are expanded.
+     */
+    protected int depth() {
+        return 0;
+    }
+
+    protected static int depth(File root, File file) {
+        return root.toPath().relativize(file.toPath()).getNameCount();
+    }
+
+    protected static int depth(OneDriveItem root, OneDriveItem item) {
+        String relativePath = item.getFullName().substring(Math.min(root.getFullName().length(), item.getFullName().length()));
+        int depth = 1;
+
+        for (int i = 0; i < relativePath.length() - 1; i++) {
+            if (relativePath.charAt(i) == '/') {
+                depth++;
+            }
+        }
+
+        return depth;
+    }
+
+    /**
+     * Put off a task that is about to expand into children while the queue cannot take them, so that folders are
+     * not listed before there is room for their content.
+     *
+     * @param copy Creates a new task doing the same work, which is queued once expanding is possible
+     * @return Whether the task was deferred, in which case the caller should return straight away
+     */
+    protected boolean deferExpansion(Supplier<Task> copy) {
+        if (queue.canExpand()) {
+            return false;
+        }
+
+        queue.defer(copy.get());
+        return true;
+    }
+
+    /**
+     * Queue the given tasks until the queue reaches its capacity, the remaining tasks are parked in a continuation
+     * which is resumed once the queue has drained.
+     *
+     * @param tasks The tasks to queue, created lazily by the iterator where possible
+     */
+    protected void addAll(Iterator<? extends Task> tasks) {
+        while (tasks.hasNext()) {
+            if (!queue.hasCapacity()) {
+                queue.park(new ContinuationTask(getTaskOptions(), this, tasks));
+                return;
+            }
+
+            queue.add(tasks.next());
+        }
+    }
+
+    protected static TaskQueue.Lane transferLane(long size) {
+        return size > getCommandLineOpts().getLargeFileSize() * 1024L * 1024L
+            ? TaskQueue.Lane.LARGE_TRANSFER
+            : TaskQueue.Lane.SMALL_TRANSFER;
+    }
+
+    protected RetryPolicy retryPolicy() {
+        return new RetryPolicy(getCommandLineOpts().getTries(type().getName()), RETRY_BASE_DELAY, RETRY_MAX_DELAY);
+    }
+
+    private long nextBackOffDelay() {
+        if (backOff == null) {
+            backOff = retryPolicy().newBackOff();
+        }
+
+        return backOff.nextDelay();
+    }
+
     protected abstract void taskBody() throws IOException;
 
+    public int getTaskId() {
+        return id;
+    }
+
+    /**
+     * Describe this task for the task journal, so that it can be rebuilt by {@link #fromJournal}.
+     */
+    public abstract JournalEntry journalEntry();
+
+    protected JournalEntry journalEntry(boolean replace, OneDriveItem remoteItem, File localFile) {
+        return new JournalEntry(
+            id,
+            type().getName(),
+            attempt,
+            replace,
+            remoteItem != null ? remoteItem.getId() : null,
+            localFile != null ? localFile.getAbsolutePath() : null
+        );
+    }
+
+    /**
+     * Rebuild a task recorded in the task journal of a previous run.
+     *
+     * @param entry      The recorded task
+     * @param options    The options for the new task
+     * @param remoteRoot The remote root folder of this run
+     * @param localRoot  The local root folder of this run
+     * @return The rebuilt task
+     * @throws IOException              if the remote item of the task cannot be retrieved
+     * @throws IllegalArgumentException if the recorded local file is not inside the local root folder
+     */
+    public static Task fromJournal(JournalEntry entry, TaskOptions options, OneDriveItem remoteRoot, File localRoot)
+        throws IOException {
+        File localFile = entry.getLocalPath() != null ? new File(entry.getLocalPath()) : null;
+
+        // Never let a journal from another folder delete or overwrite files outside of this one
+        if (localFile != null && !isInside(localRoot, localFile)) {
+            throw new IllegalArgumentException("Local file is not inside " + localRoot.getPath());
+        }
+
+        OneDriveItem remoteItem = entry.getRemoteId() != null ? options.getApi().getItem(entry.getRemoteId()) : null;
+
+        Task task;
+        switch (Type.fromName(entry.getType())) {
+            case CHECK:
+                task = new CheckTask(options, remoteRoot, remoteItem, localRoot, localFile);
+                break;
+            case UPLOAD:
+                task = new UploadTask(options, remoteItem, localRoot, localFile, entry.isReplace());
+                break;
+            case DOWNLOAD:
+                task = new DownloadTask(options, localFile, remoteRoot, remoteItem, entry.isReplace());
+                break;
+            case DELETE:
+                task = remoteItem != null ? new DeleteTask(options, remoteItem) : new DeleteTask(options, localFile);
+                break;
+            case UPDATE_PROPERTIES:
+                task = new UpdatePropertiesTask(options, remoteItem, localFile);
+                break;
+            default:
+                throw new IllegalStateException("Unsupported task type " + entry.getType());
+        }
+
+        // Attempts made in the previous run count towards the retry limit
+        task.attempt = entry.getAttempt();
+        return task;
+    }
+
+    private static boolean isInside(File root, File file) {
+        Path rootPath = root.toPath().toAbsolutePath().normalize();
+        Path path = file.toPath().toAbsolutePath().normalize();
+        return path.startsWith(rootPath);
+    }
+
     protected String getId() {
         return this.id + ":" + this.attempt;
     }
 
     public void run() {
         attempt++;
+        long retryDelay;
+        long startTime = System.currentTimeMillis();
         try {
             log.debug("Starting task {}:{} - {}", id, attempt, this.toString());
             taskBody();
+            queue.succeeded(this, System.currentTimeMillis() - startTime);
             return;
         } catch (HttpResponseException ex) {
+            long retryAfter = RetryAfter.getDelay(ex.getHeaders());
+
             switch (ex.getStatusCode()) {
                 case 401:
                     log.warn("Task {}: [{}] encountered {}", getId(), this.toString(), ex.getMessage());
+                    retryDelay = 0;
                     break;
                 case 500:
                 case 502:
                 case 503:
                 case 504:
+                    if (ex.getStatusCode() == 503) {
+                        queue.throttled(this);
+                    }
+
+                    retryDelay = retryAfter >= 0 ? retryAfter : nextBackOffDelay();
                     log.warn(
-                        "Task {}: [{}] encountered {} - sleeping 10 seconds",
-                        getId(), this.toString(), ex.getMessage()
+                        "Task {}: [{}] encountered {} - retrying in {}",
+                        getId(), this.toString(), ex.getMessage(), readableTime(retryDelay)
                     );
-                    queue.suspend(10);
                     break;
                 case 429:
                 case 509:
+                    retryDelay = retryAfter >= 0 ? retryAfter : THROTTLE_DELAY + nextBackOffDelay();
                     log.warn(
-                        "Task {}: [{}] encountered {} - sleeping 60 seconds",
-                        getId(), this.toString(), ex.getMessage()
+                        "Task {}: [{}] encountered {} - suspending queue for {}",
+                        getId(), this.toString(), ex.getMessage(), readableTime(retryDelay)
                     );
-                    queue.suspend(60);
+                    // We are being throttled, hold back all work rather than just this task
+                    queue.throttled(this);
+                    queue.suspend((int) Math.ceil(retryDelay / 1000d));
                     break;
                 default:
                     log.warn("Task {}: [{}] encountered {}", getId(), this.toString(), ex.getMessage());
+                    retryDelay = 0;
             }
         } catch (SocketException ex) {
+            retryDelay = nextBackOffDelay();
             log.warn(
-                "Task {}: [{}] encountered socket exception: {} - sleeping for 1 second.", getId(),
-                this.toString(), ex.getMessage()
+                "Task {}: [{}] encountered socket exception: {} - retrying in {}.", getId(),
+                this.toString(), ex.getMessage(), readableTime(retryDelay)
             );
-            queue.suspend(1);
         } catch (Exception ex) {
             log.error("Task {}: [{}] encountered exception", getId(), this.toString(), ex);
-            queue.suspend(1);
+            retryDelay = nextBackOffDelay();
         }
 
-        if (attempt < getCommandLineOpts().getTries()) {
-            queue.add(this);
+        if (retryPolicy().canRetry(attempt)) {
+            queue.retry(this, retryDelay);
         } else {
             reporter.error();
             log.error("Task {} did not complete - {}", id, this.toString());
@@ -182,7 +383,39 @@ public abstract class Task implements Runnable, Comparable<Task> {
 
     @SuppressWarnings("NullableProblems")
     public int compareTo(Task o) {
-        return o.priority() - priority();
+        if (o.priority() != priority()) {
+            return o.priority() - priority();
+        }
+
+        return o.depth() - depth();
+    }
+
+    public enum Type {
+        CHECK("check"),
+        UPLOAD("upload"),
+        DOWNLOAD("download"),
+        DELETE("delete"),
+        UPDATE_PROPERTIES("properties");
+
+        private final String name;
+
+        Type(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public static Type fromName(String name) {
+            for (Type type : values()) {
+                if (type.name.equalsIgnoreCase(name)) {
+                    return type;
+                }
+            }
+
+            throw new IllegalArgumentException("Unknown task type " + name);
+        }
     }
 
     public static class TaskOptions {
@@ -1,7 +1,9 @@
 package com.wouterbreukink.onedrive.tasks;
 
+import com.wouterbreukink.onedrive.io.BufferPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import utils.string.FormatUtils;
 
 import static com.wouterbreukink.onedrive.LogUtils.readableFileSize;
 import static com.wouterbreukink.onedrive.LogUtils.readableTime;
@@ -161,6 +163,27 @@ public class TaskReporter {
 
         long elapsed = System.currentTimeMillis() - startTime;
         log.info("Elapsed time: {}", readableTime(elapsed));
+
+        int transferred = newUploaded + replaceUploaded + newDownloaded + replaceDownloaded;
+        long transferredSize = newUploadedSize + replaceUploadedSize + newDownloadedSize + replaceDownloadedSize;
+
+        if (transferred > 0 && elapsed > 0) {
+            log.info(
+                "Throughput: {} files/s, {}/s",
+                FormatUtils.formatNumber(transferred * 1000d / elapsed),
+                readableFileSize(transferredSize * 1000 / elapsed)
+            );
+        }
+
+        BufferPool buffers = BufferPool.DEFAULT;
+        if (buffers.getAcquired() > 0) {
+            log.info(
+                "I/O buffers: {} allocated ({}) for {} uses",
+                buffers.getAllocated(),
+                readableFileSize(buffers.getAllocated() * buffers.getBufferSize()),
+                buffers.getAcquired()
+            );
+        }
     }
 
     private String plural(long same) {
@@ -1,7 +1,9 @@
 package com.wouterbreukink.onedrive.tasks;
 
 import com.google.api.client.util.Preconditions;
+import com.wouterbreukink.onedrive.TaskQueue;
 import com.wouterbreukink.onedrive.client.OneDriveItem;
+import com.wouterbreukink.onedrive.journal.JournalEntry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -33,6 +35,21 @@ public class UpdatePropertiesTask extends Task {
         return PRIORITY;
     }
 
+    @Override
+    public Type type() {
+        return Type.UPDATE_PROPERTIES;
+    }
+
+    @Override
+    protected TaskQueue.Lane assignLane() {
+        return TaskQueue.Lane.MAINTENANCE;
+    }
+
+    @Override
+    public JournalEntry journalEntry() {
+        return journalEntry(false, remoteFile, localFile);
+    }
+
     @Override
     public String toString() {
         return "Update properties for " + remoteFile.getFullName();
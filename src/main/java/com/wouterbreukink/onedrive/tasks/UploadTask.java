@@ -1,14 +1,21 @@
 package com.wouterbreukink.onedrive.tasks;
 
 import com.google.api.client.util.Preconditions;
+import com.wouterbreukink.onedrive.TaskQueue;
 import com.wouterbreukink.onedrive.client.OneDriveItem;
 import com.wouterbreukink.onedrive.client.OneDriveUploadSession;
+import com.wouterbreukink.onedrive.filesystem.FileHashes;
+import com.wouterbreukink.onedrive.filesystem.hash.MultiHasher;
+import com.wouterbreukink.onedrive.journal.JournalEntry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import utils.string.FormatUtils;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.EnumSet;
 
 import static com.wouterbreukink.onedrive.CommandLineOpts.getCommandLineOpts;
 import static com.wouterbreukink.onedrive.LogUtils.readableFileSize;
@@ -22,6 +29,8 @@ public class UploadTask extends Task {
     private final OneDriveItem parent;
     private final File localFile, localRoot;
     private final boolean replace;
+    private final int depth;
+    private long size = -1;
 
     public UploadTask(TaskOptions options, OneDriveItem parent, File localRoot, File localFile, boolean replace) {
 
@@ -31,6 +40,7 @@ public class UploadTask extends Task {
         this.localFile = Preconditions.checkNotNull(localFile);
         this.localRoot = Preconditions.checkNotNull(localRoot);
         this.replace = replace;
+        this.depth = depth(localRoot, localFile);
 
         if (!parent.isDirectory()) {
             throw new IllegalArgumentException("Specified parent is not a folder");
@@ -41,6 +51,36 @@ public class UploadTask extends Task {
         return PRIORITY;
     }
 
+    @Override
+    public Type type() {
+        return Type.UPLOAD;
+    }
+
+    @Override
+    protected TaskQueue.Lane assignLane() {
+        return localFile.isDirectory() ? TaskQueue.Lane.METADATA : transferLane(transferSize());
+    }
+
+    @Override
+    public long transferSize() {
+        // Fixed at the first call, the file may change while the task is queued
+        if (size < 0) {
+            size = localFile.isDirectory() ? 0 : localFile.length();
+        }
+
+        return size;
+    }
+
+    @Override
+    public JournalEntry journalEntry() {
+        return journalEntry(replace, parent, localFile);
+    }
+
+    @Override
+    protected int depth() {
+        return depth;
+    }
+
     @Override
     public String toString() {
         return "Upload " + parent.getFullName() + localFile.getName();
@@ -54,12 +94,18 @@ public class UploadTask extends Task {
         }
 
         if (localFile.isDirectory()) {
+            if (deferExpansion(() -> new UploadTask(getTaskOptions(), parent, localRoot, localFile, replace))) {
+                return;
+            }
+
             OneDriveItem newParent = api.createFolder(parent, localFile);
 
             //noinspection ConstantConditions
-            for (File f : localFile.listFiles()) {
-                queue.add(new UploadTask(getTaskOptions(), newParent, localRoot, f, false));
-            }
+            addAll(
+                Arrays.stream(localFile.listFiles())
+                    .map(f -> new UploadTask(getTaskOptions(), newParent, localRoot, f, false))
+                    .iterator()
+            );
         } else {
 
             if (isSizeInvalid(localFile)) {
@@ -69,54 +115,92 @@ public class UploadTask extends Task {
 
             long startTime = System.currentTimeMillis();
 
+            // Read before sending, the hashes are only remembered if the file is unchanged afterwards
+            BasicFileAttributes attributes = fileSystem.readAttributes(localFile);
+
             OneDriveItem response;
+            FileHashes uploaded;
             if (localFile.length() > getCommandLineOpts().getSplitAfter() * 1024 * 1024) {
                 int tryCount = 0;
-                OneDriveUploadSession session = api.startUploadSession(parent, localFile);
-
-                while (!session.isComplete()) {
-                    long startTimeInner = System.currentTimeMillis();
-
-                    try {
-                        // We don't want to keep retrying infinitely
-                        if (tryCount == getCommandLineOpts().getTries()) {
-                            break;
+                try (OneDriveUploadSession session = api.startUploadSession(parent, localFile)) {
+                    while (!session.isComplete()) {
+                        long startTimeInner = System.currentTimeMillis();
+
+                        try {
+                            // We don't want to keep retrying infinitely
+                            if (tryCount == getCommandLineOpts().getTries()) {
+                                break;
+                            }
+
+                            api.uploadChunk(session);
+
+                            // Time spent waiting for the disk is not part of the send rate
+                            long elapsedTimeInner = System.currentTimeMillis() - startTimeInner - session.getLastReadWait();
+                            session.chunkSucceeded(elapsedTimeInner);
+
+                            log.trace(
+                                "Uploaded chunk (progress {}) of {} ({}/s, waited {}ms for disk, next chunk {}) for file {}",
+                                FormatUtils.formatNumber(((double) session.getTotalUploaded() / session.getFileSize()) * 100, 1),
+                                readableFileSize(session.getLastUploaded()),
+                                elapsedTimeInner > 0 ? readableFileSize(session.getLastUploaded() / (elapsedTimeInner / 1000d)) : 0,
+                                session.getLastReadWait(),
+                                readableFileSize(session.getChunkSize()),
+                                parent.getFullName() + localFile.getName()
+                            );
+
+                            // After a successful upload we'll reset the tryCount
+                            tryCount = 0;
+
+                        } catch (IOException ex) {
+                            session.chunkFailed();
+
+                            log.warn(
+                                "Encountered '{}' while uploading chunk for file {}, retrying with chunks of {}",
+                                ex.getMessage(),
+                                parent.getFullName() + localFile.getName(),
+                                readableFileSize(session.getChunkSize())
+                            );
+
+                            tryCount++;
+
+                            // Continue from what the service actually received
+                            try {
+                                api.refreshUploadSession(session);
+                            } catch (IOException e) {
+                                log.debug("Unable to read upload session of {} - {}", localFile.getPath(), e.getMessage());
+                            }
                         }
+                    }
 
-                        api.uploadChunk(session);
-
-                        long elapsedTimeInner = System.currentTimeMillis() - startTimeInner;
-
-                        log.trace(
-                            "Uploaded chunk (progress {}) of {} ({}/s) for file {}",
-                            FormatUtils.formatNumber(((double) session.getTotalUploaded() / session.getFile().length()) * 100, 1),
-                            readableFileSize(session.getLastUploaded()),
-                            elapsedTimeInner > 0 ? readableFileSize(session.getLastUploaded() / (elapsedTimeInner / 1000d)) : 0,
-                            parent.getFullName() + localFile.getName()
-                        );
-
-                        // After a successful upload we'll reset the tryCount
-                        tryCount = 0;
+                    if (!session.isComplete()) {
+                        throw new IOException(String.format("Gave up on multi-part upload after %s retries", getCommandLineOpts().getTries()));
+                    }
 
-                    } catch (IOException ex) {
-                        log.warn(
-                            "Encountered '{}' while uploading chunk of {} for file {}",
-                            ex.getMessage(),
-                            readableFileSize(session.getLastUploaded()),
-                            parent.getFullName() + localFile.getName()
-                        );
+                    log.debug(
+                        "Read ahead chunks of {} in {}, of which {} delayed sending",
+                        localFile.getPath(),
+                        readableTime(session.getTotalReadTime()),
+                        readableTime(session.getTotalReadWait())
+                    );
 
-                        tryCount++;
-                    }
+                    response = session.getItem();
+                    uploaded = session.getHashes();
                 }
+            } else {
+                MultiHasher hasher = new MultiHasher(EnumSet.allOf(MultiHasher.Algorithm.class));
+                response = replace ? api.replaceFile(parent, localFile, hasher) : api.uploadFile(parent, localFile, hasher);
+                uploaded = hasher.getHashes();
+            }
 
-                if (!session.isComplete()) {
-                    throw new IOException(String.format("Gave up on multi-part upload after %s retries", getCommandLineOpts().getTries()));
+            // Compare what was sent with what the server received, and remember it for the next comparison
+            if (response.hasHashes()) {
+                FileHashes received = FileHashes.from(response.getHashes());
+
+                if (uploaded != null && uploaded.conflictsWith(received)) {
+                    throw new IOException(String.format("Upload of file '%s' failed, hash mismatch", localFile.getPath()));
                 }
 
-                response = session.getItem();
-            } else {
-                response = replace ? api.replaceFile(parent, localFile) : api.uploadFile(parent, localFile);
+                fileSystem.storeHashes(localFile, attributes, received.merge(uploaded));
             }
 
             long elapsedTime = System.currentTimeMillis() - startTime;
@@ -0,0 +1,126 @@
+package com.wouterbreukink.onedrive;
+
+import com.wouterbreukink.onedrive.client.OneDriveProvider;
+import com.wouterbreukink.onedrive.client.authoriser.AuthorisationProvider;
+import com.wouterbreukink.onedrive.filesystem.FileSystemProvider;
+import com.wouterbreukink.onedrive.journal.JournalEntry;
+import com.wouterbreukink.onedrive.tasks.Task;
+import com.wouterbreukink.onedrive.tasks.TaskReporter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of handing out tasks: every operation adds a task, takes it and marks it done, from as many
+ * workers as the queue allows to run at the same time.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(8)
+public class TaskQueueBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class QueueState {
+        TaskQueue queue;
+        Task.TaskOptions options;
+
+        @Setup
+        public void setUp() throws Exception {
+            CommandLineOpts.initialise(new String[0]);
+
+            Map<TaskQueue.Lane, Integer> laneLimits = new EnumMap<>(TaskQueue.Lane.class);
+            for (TaskQueue.Lane lane : TaskQueue.Lane.values()) {
+                laneLimits.put(lane, 8);
+            }
+
+            queue = new TaskQueue(new ConcurrencyController(8), laneLimits, 0);
+
+            AuthorisationProvider authoriser = new AuthorisationProvider() {
+                @Override
+                public String getAccessToken() {
+                    return "";
+                }
+
+                @Override
+                public void refresh() {
+                }
+            };
+
+            options = new Task.TaskOptions(
+                queue,
+                OneDriveProvider.FACTORY.readOnlyApi(authoriser),
+                FileSystemProvider.FACTORY.readOnlyProvider(),
+                new TaskReporter());
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class WorkerState {
+        Task task;
+
+        @Setup
+        public void setUp(QueueState state) {
+            task = new NoopTask(state.options);
+        }
+    }
+
+    @Benchmark
+    public Task addTakeDone(QueueState state, WorkerState worker) throws InterruptedException {
+        state.queue.add(worker.task);
+        Task task = state.queue.take();
+        state.queue.done(task);
+        return task;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TaskQueueBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    private static class NoopTask extends Task {
+        NoopTask(TaskOptions options) {
+            super(options);
+        }
+
+        @Override
+        protected int priority() {
+            return 0;
+        }
+
+        @Override
+        public Type type() {
+            return Type.CHECK;
+        }
+
+        @Override
+        protected TaskQueue.Lane assignLane() {
+            return TaskQueue.Lane.METADATA;
+        }
+
+        @Override
+        public JournalEntry journalEntry() {
+            return null;
+        }
+
+        @Override
+        protected void taskBody() {
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.wouterbreukink.onedrive.filesystem.hash;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+
+public class Crc32CombineTest {
+
+    @Test
+    public void combinesCheckValue() {
+        // CRC-32 check value of "123456789"
+        long combined = Crc32Combine.combine(crc("12345".getBytes(StandardCharsets.US_ASCII)),
+            crc("6789".getBytes(StandardCharsets.US_ASCII)), 4);
+
+        assertEquals(0xCBF43926L, combined);
+    }
+
+    @Test
+    public void emptySecondBlockKeepsFirstChecksum() {
+        long crc = crc("123456789".getBytes(StandardCharsets.US_ASCII));
+
+        assertEquals(crc, Crc32Combine.combine(crc, crc(new byte[0]), 0));
+    }
+
+    @Test
+    public void matchesChecksumOfWhole() {
+        byte[] content = new byte[3 * 1024 * 1024 + 17];
+        new Random(1).nextBytes(content);
+
+        for (int split : new int[]{0, 1, 4096, 1024 * 1024, content.length - 1, content.length}) {
+            byte[] first = new byte[split];
+            byte[] second = new byte[content.length - split];
+            System.arraycopy(content, 0, first, 0, first.length);
+            System.arraycopy(content, split, second, 0, second.length);
+
+            assertEquals("split " + split, crc(content), Crc32Combine.combine(crc(first), crc(second), second.length));
+        }
+    }
+
+    private static long crc(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return crc.getValue();
+    }
+}
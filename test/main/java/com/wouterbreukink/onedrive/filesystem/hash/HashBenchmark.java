@@ -0,0 +1,109 @@
+package com.wouterbreukink.onedrive.filesystem.hash;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Measures the hashes computed for every transferred file: each of them on its own and together in a single pass
+ * over a 1 MiB buffer, combining CRC32 checksums, and hashing a file large enough to be split into parallel segments.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HashBenchmark {
+    private byte[] content;
+
+    @Setup
+    public void setUp() {
+        content = new byte[1024 * 1024];
+        new Random(1).nextBytes(content);
+    }
+
+    @Benchmark
+    public long crc32() {
+        CRC32 crc = new CRC32();
+        crc.update(content, 0, content.length);
+        return crc.getValue();
+    }
+
+    @Benchmark
+    public byte[] quickXorHash() {
+        QuickXorHash hash = new QuickXorHash();
+        hash.update(content, 0, content.length);
+        return hash.digest();
+    }
+
+    @Benchmark
+    public Object allAlgorithms() {
+        MultiHasher hasher = new MultiHasher(EnumSet.allOf(MultiHasher.Algorithm.class));
+        hasher.update(content, 0, content.length);
+        return hasher.getHashes();
+    }
+
+    @Benchmark
+    public long crc32Combine() {
+        return Crc32Combine.combine(0x12345678L, 0x9ABCDEF0L, 64L * 1024 * 1024);
+    }
+
+    @State(Scope.Benchmark)
+    public static class LargeFile {
+        @Param({"512"})
+        public int sizeMiB;
+
+        File file;
+
+        @Setup
+        public void setUp() throws IOException {
+            file = File.createTempFile("hash-benchmark", ".bin");
+            byte[] block = new byte[1024 * 1024];
+            Random random = new Random(2);
+
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                for (int i = 0; i < sizeMiB; i++) {
+                    random.nextBytes(block);
+                    raf.write(block);
+                }
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            file.delete();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object parallelCrc32(LargeFile largeFile) throws IOException {
+        return MultiHasher.hash(largeFile.file, EnumSet.of(MultiHasher.Algorithm.CRC32));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(HashBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,115 @@
+package com.wouterbreukink.onedrive.filesystem.hash;
+
+import com.wouterbreukink.onedrive.filesystem.FileHashes;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+
+public class MultiHasherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void hashesKnownVectors() {
+        MultiHasher hasher = new MultiHasher(EnumSet.allOf(MultiHasher.Algorithm.class));
+        byte[] content = "abc".getBytes(StandardCharsets.US_ASCII);
+        hasher.update(content, 0, content.length);
+
+        FileHashes hashes = hasher.getHashes();
+        assertEquals(Long.valueOf(0x352441C2L), hashes.getCrc32());
+        assertEquals("A9993E364706816ABA3E25717850C26C9CD0D89D", hashes.getSha1Hash().toUpperCase());
+    }
+
+    @Test
+    public void restoreForgetsLaterContent() {
+        byte[] content = new byte[100000];
+        new Random(3).nextBytes(content);
+
+        MultiHasher hasher = new MultiHasher(EnumSet.allOf(MultiHasher.Algorithm.class));
+        hasher.update(content, 0, 60000);
+        MultiHasher checkpoint = hasher.copy();
+
+        hasher.update(content, 60000, 1000);
+        hasher.restore(checkpoint);
+        hasher.update(content, 60000, 40000);
+
+        MultiHasher whole = new MultiHasher(EnumSet.allOf(MultiHasher.Algorithm.class));
+        whole.update(content, 0, content.length);
+
+        assertHashesEqual(whole.getHashes(), hasher.getHashes());
+    }
+
+    @Test
+    public void hashesChannelRegion() throws IOException {
+        File file = folder.newFile();
+        byte[] content = new byte[5 * 1024 * 1024 + 3];
+        new Random(4).nextBytes(content);
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(content));
+        }
+
+        MultiHasher expected = new MultiHasher(EnumSet.allOf(MultiHasher.Algorithm.class));
+        expected.update(content, 1000, content.length - 2000);
+
+        MultiHasher hasher = new MultiHasher(EnumSet.allOf(MultiHasher.Algorithm.class));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            hasher.update(channel, 1000, content.length - 2000);
+        }
+
+        assertHashesEqual(expected.getHashes(), hasher.getHashes());
+    }
+
+    @Test
+    public void parallelSegmentsMatchSequentialCrc() throws IOException {
+        // Above the parallel threshold, with a length that does not end on a segment boundary
+        File file = folder.newFile();
+        long length = 300L * 1024 * 1024 + 12345;
+        Random random = new Random(5);
+        byte[] block = new byte[4096];
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(length);
+
+            // Content in each segment and around the segment boundaries
+            for (long position : new long[]{0, 64L * 1024 * 1024 - 100, 128L * 1024 * 1024, 256L * 1024 * 1024 + 1, length - block.length}) {
+                random.nextBytes(block);
+                raf.seek(position);
+                raf.write(block);
+            }
+        }
+
+        CRC32 expected = new CRC32();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                expected.update(buffer);
+                buffer.clear();
+            }
+        }
+
+        FileHashes hashes = MultiHasher.hash(file, EnumSet.of(MultiHasher.Algorithm.CRC32));
+        assertEquals(Long.valueOf(expected.getValue()), hashes.getCrc32());
+    }
+
+    private static void assertHashesEqual(FileHashes expected, FileHashes actual) {
+        assertEquals(expected.getCrc32(), actual.getCrc32());
+        assertEquals(expected.getSha1Hash(), actual.getSha1Hash());
+        assertEquals(expected.getQuickXorHash(), actual.getQuickXorHash());
+    }
+}
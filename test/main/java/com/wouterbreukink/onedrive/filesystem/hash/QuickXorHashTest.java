@@ -0,0 +1,99 @@
+package com.wouterbreukink.onedrive.filesystem.hash;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class QuickXorHashTest {
+
+    @Test
+    public void emptyContentHashesToZero() {
+        assertEquals("AAAAAAAAAAAAAAAAAAAAAAAAAAA=", new QuickXorHash().digestBase64());
+    }
+
+    @Test
+    public void singleByteIsXoredWithTheLength() {
+        // Byte 0 lands on bit 0, the length of 1 on the first byte of the last 64 bits
+        assertEquals("AQAAAAAAAAAAAAAAAQAAAAAAAAA=", hash(new byte[]{1}));
+    }
+
+    @Test
+    public void secondByteIsShiftedByElevenBits() {
+        // Byte 1 lands on bit 11, which is bit 3 of the second byte
+        assertEquals("AAgAAAAAAAAAAAAAAgAAAAAAAAA=", hash(new byte[]{0, 1}));
+    }
+
+    @Test
+    public void matchesBitwiseReference() {
+        Random random = new Random(42);
+
+        // Lengths around the 160 byte period and the 64 KiB scratch buffer
+        for (int length : new int[]{2, 19, 20, 21, 159, 160, 161, 1000, 65535, 65536, 65537, 200000}) {
+            byte[] content = new byte[length];
+            random.nextBytes(content);
+
+            assertEquals("length " + length, reference(content), hash(content));
+        }
+    }
+
+    @Test
+    public void updatesInPiecesMatchOneUpdate() {
+        byte[] content = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+
+        QuickXorHash hash = new QuickXorHash();
+        hash.update(content, 0, 7);
+        hash.update(ByteBuffer.wrap(content, 7, 20));
+        hash.update(content, 27, content.length - 27);
+
+        assertEquals(reference(content), hash.digestBase64());
+    }
+
+    @Test
+    public void copyIsIndependent() {
+        byte[] content = new byte[500];
+        new Random(7).nextBytes(content);
+
+        QuickXorHash hash = new QuickXorHash();
+        hash.update(content, 0, 300);
+        QuickXorHash copy = hash.copy();
+        copy.update(content, 300, 200);
+
+        assertEquals(reference(Arrays.copyOf(content, 300)), hash.digestBase64());
+        assertEquals(reference(content), copy.digestBase64());
+    }
+
+    private static String hash(byte[] content) {
+        QuickXorHash hash = new QuickXorHash();
+        hash.update(content, 0, content.length);
+        return hash.digestBase64();
+    }
+
+    // One bit at a time, as in the description of the algorithm
+    private static String reference(byte[] content) {
+        byte[] result = new byte[20];
+
+        for (int i = 0; i < content.length; i++) {
+            int shift = (int) ((long) i * 11 % 160);
+
+            for (int bit = 0; bit < 8; bit++) {
+                if ((content[i] >> bit & 1) != 0) {
+                    int position = (shift + bit) % 160;
+                    result[position / 8] ^= (byte) (1 << position % 8);
+                }
+            }
+        }
+
+        long length = content.length;
+        for (int i = 0; i < 8; i++) {
+            result[12 + i] ^= (byte) (length >>> (i * 8));
+        }
+
+        return Base64.getEncoder().encodeToString(result);
+    }
+}